@@ -0,0 +1,273 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the tree {@link Format#JSON} makes of a job state in a binary encoding, so that binary payloads have the same
+ * fields, named the same way, as JSON ones. Integers are written in the fewest bytes holding them, other numbers as
+ * 64-bit floats.
+ */
+enum BinaryEncoding {
+    /**
+     * <a href="https://www.rfc-editor.org/rfc/rfc8949">CBOR</a>, with definite lengths only.
+     */
+    CBOR {
+        @Override
+        void writeMapHeader(DataOutputStream out, int size) throws IOException {
+            writeHead(out, 5, size);
+        }
+
+        @Override
+        void writeArrayHeader(DataOutputStream out, int size) throws IOException {
+            writeHead(out, 4, size);
+        }
+
+        @Override
+        void writeString(DataOutputStream out, byte[] utf8) throws IOException {
+            writeHead(out, 3, utf8.length);
+            out.write(utf8);
+        }
+
+        @Override
+        void writeInteger(DataOutputStream out, long value) throws IOException {
+            if (value >= 0) {
+                writeHead(out, 0, value);
+            } else {
+                writeHead(out, 1, -1 - value);
+            }
+        }
+
+        @Override
+        void writeDouble(DataOutputStream out, double value) throws IOException {
+            out.writeByte(0xFB);
+            out.writeDouble(value);
+        }
+
+        @Override
+        void writeBoolean(DataOutputStream out, boolean value) throws IOException {
+            out.writeByte(value ? 0xF5 : 0xF4);
+        }
+
+        @Override
+        void writeNull(DataOutputStream out) throws IOException {
+            out.writeByte(0xF6);
+        }
+
+        private void writeHead(DataOutputStream out, int majorType, long argument) throws IOException {
+            int type = majorType << 5;
+            if (argument < 24) {
+                out.writeByte(type | (int) argument);
+            } else if (argument <= 0xFF) {
+                out.writeByte(type | 24);
+                out.writeByte((int) argument);
+            } else if (argument <= 0xFFFF) {
+                out.writeByte(type | 25);
+                out.writeShort((int) argument);
+            } else if (argument <= 0xFFFFFFFFL) {
+                out.writeByte(type | 26);
+                out.writeInt((int) argument);
+            } else {
+                out.writeByte(type | 27);
+                out.writeLong(argument);
+            }
+        }
+    },
+    /**
+     * <a href="https://github.com/msgpack/msgpack/blob/master/spec.md">MessagePack</a>, with strings as str and
+     * never as bin.
+     */
+    MESSAGE_PACK {
+        @Override
+        void writeMapHeader(DataOutputStream out, int size) throws IOException {
+            if (size < 16) {
+                out.writeByte(0x80 | size);
+            } else if (size <= 0xFFFF) {
+                out.writeByte(0xDE);
+                out.writeShort(size);
+            } else {
+                out.writeByte(0xDF);
+                out.writeInt(size);
+            }
+        }
+
+        @Override
+        void writeArrayHeader(DataOutputStream out, int size) throws IOException {
+            if (size < 16) {
+                out.writeByte(0x90 | size);
+            } else if (size <= 0xFFFF) {
+                out.writeByte(0xDC);
+                out.writeShort(size);
+            } else {
+                out.writeByte(0xDD);
+                out.writeInt(size);
+            }
+        }
+
+        @Override
+        void writeString(DataOutputStream out, byte[] utf8) throws IOException {
+            int length = utf8.length;
+            if (length < 32) {
+                out.writeByte(0xA0 | length);
+            } else if (length <= 0xFF) {
+                out.writeByte(0xD9);
+                out.writeByte(length);
+            } else if (length <= 0xFFFF) {
+                out.writeByte(0xDA);
+                out.writeShort(length);
+            } else {
+                out.writeByte(0xDB);
+                out.writeInt(length);
+            }
+            out.write(utf8);
+        }
+
+        @Override
+        void writeInteger(DataOutputStream out, long value) throws IOException {
+            if (value >= -32 && value < 128) {
+                // positive or negative fixint
+                out.writeByte((int) value);
+            } else if (value >= 0) {
+                if (value <= 0xFF) {
+                    out.writeByte(0xCC);
+                    out.writeByte((int) value);
+                } else if (value <= 0xFFFF) {
+                    out.writeByte(0xCD);
+                    out.writeShort((int) value);
+                } else if (value <= 0xFFFFFFFFL) {
+                    out.writeByte(0xCE);
+                    out.writeInt((int) value);
+                } else {
+                    out.writeByte(0xCF);
+                    out.writeLong(value);
+                }
+            } else if (value >= Byte.MIN_VALUE) {
+                out.writeByte(0xD0);
+                out.writeByte((int) value);
+            } else if (value >= Short.MIN_VALUE) {
+                out.writeByte(0xD1);
+                out.writeShort((int) value);
+            } else if (value >= Integer.MIN_VALUE) {
+                out.writeByte(0xD2);
+                out.writeInt((int) value);
+            } else {
+                out.writeByte(0xD3);
+                out.writeLong(value);
+            }
+        }
+
+        @Override
+        void writeDouble(DataOutputStream out, double value) throws IOException {
+            out.writeByte(0xCB);
+            out.writeDouble(value);
+        }
+
+        @Override
+        void writeBoolean(DataOutputStream out, boolean value) throws IOException {
+            out.writeByte(value ? 0xC3 : 0xC2);
+        }
+
+        @Override
+        void writeNull(DataOutputStream out) throws IOException {
+            out.writeByte(0xC0);
+        }
+    };
+
+    /**
+     * Writes an element and everything it contains.
+     */
+    void write(OutputStream out, JsonElement element) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        writeElement(data, element);
+        data.flush();
+    }
+
+    /**
+     * @return Header of an array of the given number of elements, each to be written after it.
+     */
+    byte[] arrayHeader(int size) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(5);
+        try {
+            writeArrayHeader(new DataOutputStream(header), size);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return header.toByteArray();
+    }
+
+    private void writeElement(DataOutputStream out, JsonElement element) throws IOException {
+        if (element == null || element.isJsonNull()) {
+            writeNull(out);
+        } else if (element.isJsonObject()) {
+            Set<Map.Entry<String, JsonElement>> members = element.getAsJsonObject().entrySet();
+            writeMapHeader(out, members.size());
+            for (Map.Entry<String, JsonElement> member : members) {
+                writeString(out, member.getKey().getBytes(StandardCharsets.UTF_8));
+                writeElement(out, member.getValue());
+            }
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            writeArrayHeader(out, array.size());
+            for (JsonElement item : array) {
+                writeElement(out, item);
+            }
+        } else {
+            writePrimitive(out, element.getAsJsonPrimitive());
+        }
+    }
+
+    private void writePrimitive(DataOutputStream out, JsonPrimitive primitive) throws IOException {
+        if (primitive.isBoolean()) {
+            writeBoolean(out, primitive.getAsBoolean());
+        } else if (primitive.isNumber()) {
+            Number number = primitive.getAsNumber();
+            if (number instanceof Long
+                    || number instanceof Integer
+                    || number instanceof Short
+                    || number instanceof Byte
+                    || number instanceof BigInteger && ((BigInteger) number).bitLength() < 64) {
+                writeInteger(out, number.longValue());
+            } else {
+                writeDouble(out, number.doubleValue());
+            }
+        } else {
+            writeString(out, primitive.getAsString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    abstract void writeMapHeader(DataOutputStream out, int size) throws IOException;
+
+    abstract void writeArrayHeader(DataOutputStream out, int size) throws IOException;
+
+    abstract void writeString(DataOutputStream out, byte[] utf8) throws IOException;
+
+    abstract void writeInteger(DataOutputStream out, long value) throws IOException;
+
+    abstract void writeDouble(DataOutputStream out, double value) throws IOException;
+
+    abstract void writeBoolean(DataOutputStream out, boolean value) throws IOException;
+
+    abstract void writeNull(DataOutputStream out) throws IOException;
+}
@@ -0,0 +1,95 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.util.Queue;
+
+/**
+ * Bounds the number of deliveries in flight to a destination or an endpoint, so a receiver that hangs can only tie
+ * up its own share of the dispatcher workers.
+ * <p>
+ * Deliveries over the limit wait in a bounded queue without holding any thread, and are started as slots free up,
+ * by {@link Priority} like in the {@link PriorityLaneQueue} of the dispatcher when they are
+ * {@link PriorityLaneQueue.Task}s.
+ */
+final class Bulkhead {
+
+    private final int maxConcurrent;
+
+    private final int maxQueued;
+
+    private final Queue<Runnable> waiting = new PriorityLaneQueue();
+
+    private int inFlight;
+
+    /**
+     * @param maxConcurrent Maximum number of deliveries in flight.
+     * @param maxQueued Maximum number of deliveries waiting for a slot.
+     */
+    Bulkhead(int maxConcurrent, int maxQueued) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxQueued = Math.max(0, maxQueued);
+    }
+
+    /**
+     * Starts a delivery now if a slot is free, or once one is. The delivery must call {@link #release()} when done.
+     * @param delivery Delivery to start, it must return quickly.
+     * @return False if the delivery was rejected because the queue is full.
+     */
+    boolean enter(Runnable delivery) {
+        synchronized (this) {
+            if (inFlight >= maxConcurrent) {
+                if (waiting.size() >= maxQueued) {
+                    return false;
+                }
+                waiting.add(delivery);
+                return true;
+            }
+            inFlight++;
+        }
+        delivery.run();
+        return true;
+    }
+
+    /**
+     * Frees the slot of a delivery, handing it over to the next waiting one if any.
+     */
+    void release() {
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                inFlight--;
+                return;
+            }
+        }
+        next.run();
+    }
+
+    /**
+     * @return Whether no delivery is in flight or waiting, so that replacing the bulkhead with a new one would not
+     * change anything.
+     */
+    synchronized boolean isIdle() {
+        return inFlight == 0 && waiting.isEmpty();
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized int getQueued() {
+        return waiting.size();
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Circuit breaker for one destination, shared by every endpoint and job sending to it.
+ * <p>
+ * The breaker opens when at least {@code ...CircuitBreaker.failureRate} percent (default 50) of the last
+ * {@code ...CircuitBreaker.windowSize} deliveries (default 20) failed, once at least
+ * {@code ...CircuitBreaker.minimumCalls} (default 10) were made. While open, no delivery is attempted for
+ * {@code ...CircuitBreaker.openDuration} milliseconds (default 30000). Then up to
+ * {@code ...CircuitBreaker.halfOpenTrials} (default 1) trial deliveries go through: the breaker closes if they all
+ * succeed and opens again otherwise. Set {@code ...CircuitBreaker.enabled} to {@code false} to disable breakers.
+ */
+final class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    static final boolean ENABLED = SystemProperties.getBoolean(CircuitBreaker.class.getName() + ".enabled", true);
+
+    private static final int WINDOW_SIZE =
+            SystemProperties.getInteger(CircuitBreaker.class.getName() + ".windowSize", 20);
+
+    private static final int MINIMUM_CALLS =
+            SystemProperties.getInteger(CircuitBreaker.class.getName() + ".minimumCalls", 10);
+
+    private static final int FAILURE_RATE =
+            SystemProperties.getInteger(CircuitBreaker.class.getName() + ".failureRate", 50);
+
+    private static final long OPEN_DURATION =
+            SystemProperties.getLong(CircuitBreaker.class.getName() + ".openDuration", 30000L);
+
+    private static final int HALF_OPEN_TRIALS =
+            SystemProperties.getInteger(CircuitBreaker.class.getName() + ".halfOpenTrials", 1);
+
+    /**
+     * Number of destinations past which idle breakers are forgotten.
+     */
+    private static final int MAX_DESTINATIONS = 1024;
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String destination;
+
+    private final int minimumCalls;
+
+    private final int failureRate;
+
+    private final long openDuration;
+
+    private final int halfOpenTrials;
+
+    private final LongSupplier clock;
+
+    /**
+     * Outcomes of the last calls, true for failures.
+     */
+    private final boolean[] window;
+
+    private int position;
+
+    private int calls;
+
+    private int failures;
+
+    private State state = State.CLOSED;
+
+    private long openUntil;
+
+    private int trialsInFlight;
+
+    private int trialSuccesses;
+
+    private long lastUsed;
+
+    CircuitBreaker(
+            String destination,
+            int windowSize,
+            int minimumCalls,
+            int failureRate,
+            long openDuration,
+            int halfOpenTrials,
+            LongSupplier clock) {
+        this.destination = destination;
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, window.length));
+        this.failureRate = failureRate;
+        this.openDuration = openDuration;
+        this.halfOpenTrials = Math.max(1, halfOpenTrials);
+        this.clock = clock;
+    }
+
+    /**
+     * @param destination Destination as returned by {@link Protocol#getDestination(String)}.
+     * @return The breaker shared by all deliveries to that destination.
+     */
+    static CircuitBreaker forDestination(String destination) {
+        CircuitBreaker breaker = BREAKERS.get(destination);
+        if (breaker == null) {
+            if (BREAKERS.size() >= MAX_DESTINATIONS) {
+                BREAKERS.values().removeIf(CircuitBreaker::isIdle);
+            }
+            breaker = BREAKERS.computeIfAbsent(
+                    destination,
+                    d -> new CircuitBreaker(
+                            d,
+                            WINDOW_SIZE,
+                            MINIMUM_CALLS,
+                            FAILURE_RATE,
+                            OPEN_DURATION,
+                            HALF_OPEN_TRIALS,
+                            System::currentTimeMillis));
+        }
+        return breaker;
+    }
+
+    /**
+     * @return All breakers created so far, by destination.
+     */
+    static Map<String, CircuitBreaker> getAll() {
+        return BREAKERS;
+    }
+
+    /**
+     * Asks for permission to attempt a delivery. When granted, the outcome must be reported with
+     * {@link #onSuccess()}, {@link #onFailure()} or {@link #onSkipped()}.
+     * @return 0 if the delivery may go ahead, otherwise the number of milliseconds to wait before asking again.
+     */
+    synchronized long tryAcquire() {
+        lastUsed = clock.getAsLong();
+        if (state == State.OPEN) {
+            long wait = openUntil - clock.getAsLong();
+            if (wait > 0) {
+                return wait;
+            }
+            state = State.HALF_OPEN;
+            trialsInFlight = 0;
+            trialSuccesses = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialsInFlight >= halfOpenTrials) {
+                // Check again soon, the trials will have settled the state by then.
+                return Math.max(1, Math.min(openDuration, 1000));
+            }
+            trialsInFlight++;
+        }
+        return 0;
+    }
+
+    synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            trialsInFlight--;
+            if (++trialSuccesses >= halfOpenTrials) {
+                LOGGER.log(Level.INFO, "Circuit to {0} closed", destination);
+                state = State.CLOSED;
+                calls = 0;
+                failures = 0;
+                position = 0;
+            }
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    /**
+     * Reports a delivery that never reached the receiver, e.g. because its payload can't be sent with the
+     * configured protocol. It says nothing about the receiver, so it only gives back the trial it may have held.
+     */
+    synchronized void onSkipped() {
+        if (state == State.HALF_OPEN) {
+            trialsInFlight--;
+        }
+    }
+
+    synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (calls >= minimumCalls && failures * 100 >= failureRate * calls) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * Stops deliveries for as long as the receiver asked, e.g. with a {@code Retry-After} header.
+     */
+    synchronized void openFor(long duration) {
+        long until = clock.getAsLong() + duration;
+        if (state != State.OPEN || until > openUntil) {
+            LOGGER.log(
+                    Level.INFO,
+                    "Circuit to {0} opened for {1} ms as asked by the receiver",
+                    new Object[] {destination, String.valueOf(duration)});
+            state = State.OPEN;
+            openUntil = until;
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return Whether the breaker is closed and has no failure recent enough to matter, so that replacing it with a
+     * new one would let the same deliveries through.
+     */
+    synchronized boolean isIdle() {
+        return state == State.CLOSED && (failures == 0 || clock.getAsLong() - lastUsed >= openDuration);
+    }
+
+    private void record(boolean failure) {
+        if (calls == window.length) {
+            if (window[position]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        window[position] = failure;
+        if (failure) {
+            failures++;
+        }
+        position = (position + 1) % window.length;
+    }
+
+    private void open() {
+        LOGGER.log(
+                Level.WARNING,
+                "Circuit to {0} opened for {1} ms",
+                new Object[] {destination, String.valueOf(openDuration)});
+        state = State.OPEN;
+        openUntil = clock.getAsLong() + openDuration;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of the notification payloads sent to an endpoint.
+ * <p>
+ * Over HTTP the payload is sent with the matching {@code Content-Encoding}. Over TCP every payload of the endpoint,
+ * compressed or below the threshold, is sent as a frame prefixed with its length, see
+ * {@link Protocol#sendAsync(Notification)}. UDP notifications are never compressed.
+ */
+public enum Compression {
+    NONE(null),
+    GZIP("gzip"),
+    /**
+     * zlib format, which is what HTTP calls {@code deflate}.
+     */
+    DEFLATE("deflate");
+
+    private final String contentEncoding;
+
+    Compression(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return Value of the {@code Content-Encoding} header, or null if not compressed.
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Chooses the compression of a payload.
+     * @param endpoint Endpoint notified, may leave the compression unset.
+     * @param length Size of the payload in bytes.
+     * @return The compression of the endpoint, or {@link #NONE} if the payload is below its threshold.
+     */
+    static Compression of(Endpoint endpoint, int length) {
+        Compression configured = endpoint.getCompression();
+        if (configured == null || length < endpoint.getCompressionThreshold()) {
+            return NONE;
+        }
+        return configured;
+    }
+
+    byte[] compress(byte[] data) throws IOException {
+        if (this == NONE) {
+            return data;
+        }
+        // Log-carrying payloads are mostly text and shrink several times.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try (OutputStream output =
+                this == GZIP ? new GZIPOutputStream(bytes, 8192) : new DeflaterOutputStream(bytes)) {
+            output.write(data);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+/**
+ * CLI access to the {@link DeadLetterQueue}, e.g. to replay everything sent to a receiver once it is back:
+ * <pre>
+ * notification-dead-letters replay -filter https://hooks.example.com -rate 300
+ * </pre>
+ */
+@Extension
+public class DeadLetterCommand extends CLICommand {
+
+    public enum Action {
+        LIST,
+        REPLAY,
+        DISCARD
+    }
+
+    @Argument(metaVar = "ACTION", usage = "list, replay or discard", required = true)
+    public Action action;
+
+    @Option(
+            name = "-filter",
+            metaVar = "TEXT",
+            usage = "Only the entries with this text in their run, phase, endpoint, destination or error")
+    public String filter;
+
+    @Option(name = "-rate", metaVar = "N", usage = "Notifications replayed per minute, 0 for no limit")
+    public int rate = DeadLetterQueue.REPLAY_RATE;
+
+    @Override
+    public String getName() {
+        return "notification-dead-letters";
+    }
+
+    @Override
+    public String getShortDescription() {
+        return Messages.DeadLetterCommand_ShortDescription();
+    }
+
+    @Override
+    protected int run() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        return run(DeadLetterQueue.get());
+    }
+
+    int run(@CheckForNull DeadLetterQueue queue) {
+        if (queue == null) {
+            stderr.println("The dead-letter queue is disabled");
+            return 1;
+        }
+        List<DeadLetterQueue.DeadLetter> entries = queue.getEntries(filter);
+        switch (action) {
+            case REPLAY:
+                queue.replay(entries, rate);
+                stdout.printf("Replaying %d notifications%n", entries.size());
+                break;
+            case DISCARD:
+                stdout.printf("Discarded %d notifications%n", queue.discard(entries));
+                break;
+            default:
+                for (DeadLetterQueue.DeadLetter entry : entries) {
+                    stdout.printf(
+                            "%d\t%tFT%<tT\t%s\t%s\t%s\t%s\t%s%n",
+                            entry.getId(),
+                            entry.getFailedAt(),
+                            entry.getRunId(),
+                            entry.getPhase(),
+                            entry.getUrlIdString(),
+                            entry.getDestination(),
+                            entry.getError());
+                }
+        }
+        return 0;
+    }
+}
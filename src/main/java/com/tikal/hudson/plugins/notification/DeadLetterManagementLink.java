@@ -0,0 +1,143 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import hudson.Extension;
+import hudson.model.Failure;
+import hudson.model.ManagementLink;
+import hudson.security.Permission;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpRedirect;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Manage Jenkins page listing the {@link DeadLetterQueue}, to filter, replay and discard its entries.
+ * <p>
+ * The actions apply to the checked entries only: a stray click with nothing checked must not replay or discard the
+ * whole queue.
+ */
+@Extension
+public class DeadLetterManagementLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return DeadLetterQueue.ENABLED ? "symbol-reload" : null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return "notification-dead-letters";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.DeadLetterManagementLink_DisplayName();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.DeadLetterManagementLink_Description();
+    }
+
+    @Override
+    public Category getCategory() {
+        return Category.TROUBLESHOOTING;
+    }
+
+    @Override
+    public Permission getRequiredPermission() {
+        return Jenkins.ADMINISTER;
+    }
+
+    @CheckForNull
+    public DeadLetterQueue getQueue() {
+        return DeadLetterQueue.get();
+    }
+
+    public List<DeadLetterQueue.DeadLetter> getEntries(@CheckForNull String filter) {
+        DeadLetterQueue queue = getQueue();
+        return queue != null ? queue.getEntries(filter) : Collections.emptyList();
+    }
+
+    public int getDefaultRate() {
+        return DeadLetterQueue.REPLAY_RATE;
+    }
+
+    @POST
+    public HttpResponse doReplay(StaplerRequest2 req, @QueryParameter String filter, @QueryParameter int rate) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        DeadLetterQueue queue = getQueue();
+        if (queue != null) {
+            queue.replay(selected(queue, req.getParameterValues("id")), rate);
+        }
+        return back(filter);
+    }
+
+    @POST
+    public HttpResponse doDiscard(StaplerRequest2 req, @QueryParameter String filter) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        DeadLetterQueue queue = getQueue();
+        if (queue != null) {
+            queue.discard(selected(queue, req.getParameterValues("id")));
+        }
+        return back(filter);
+    }
+
+    @POST
+    public HttpResponse doCancelReplay(@QueryParameter String filter) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        DeadLetterQueue queue = getQueue();
+        DeadLetterQueue.Replay replay = queue != null ? queue.getReplay() : null;
+        if (replay != null) {
+            replay.cancel();
+        }
+        return back(filter);
+    }
+
+    /**
+     * @param values Ids of the checked entries.
+     * @throws Failure If no entry is checked.
+     */
+    static List<DeadLetterQueue.DeadLetter> selected(DeadLetterQueue queue, @CheckForNull String[] values) {
+        if (values == null || values.length == 0) {
+            throw new Failure(Messages.DeadLetterManagementLink_NothingSelected());
+        }
+        Set<Long> ids = new HashSet<>();
+        for (String value : values) {
+            try {
+                ids.add(Long.parseLong(value));
+            } catch (NumberFormatException e) {
+                // Ignored, not an entry.
+            }
+        }
+        return queue.getEntriesById(ids);
+    }
+
+    private static HttpResponse back(@CheckForNull String filter) {
+        if (filter == null || filter.isBlank()) {
+            return new HttpRedirect(".");
+        }
+        return new HttpRedirect(".?filter=" + URLEncoder.encode(filter, StandardCharsets.UTF_8));
+    }
+}
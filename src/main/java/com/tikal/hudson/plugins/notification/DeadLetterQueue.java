@@ -0,0 +1,512 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Notifications that ran out of retries, kept in {@code JENKINS_HOME/notification-dead-letters} with their payload,
+ * destination and last error until they are replayed or discarded.
+ * <p>
+ * Entries are managed from the {@link DeadLetterManagementLink} page or the {@link DeadLetterCommand} CLI command.
+ * Replays go through the {@link NotificationDispatcher} again, at most
+ * {@code com.tikal.hudson.plugins.notification.DeadLetterQueue.replayRate} notifications per minute by default
+ * (600), so a receiver coming back from an outage is not flooded. Replayed notifications get all their retries
+ * again, entries that fail again come back to the queue. Only one replay runs at a time.
+ * <p>
+ * Enabled by default, disable it with the {@code ...DeadLetterQueue.enabled} system property. At most
+ * {@code ...DeadLetterQueue.maxEntries} entries are kept (default 10000), the oldest ones are dropped first.
+ */
+public final class DeadLetterQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(DeadLetterQueue.class.getName());
+
+    static final boolean ENABLED = SystemProperties.getBoolean(DeadLetterQueue.class.getName() + ".enabled", true);
+
+    static final int MAX_ENTRIES =
+            Math.max(1, SystemProperties.getInteger(DeadLetterQueue.class.getName() + ".maxEntries", 10000));
+
+    static final int REPLAY_RATE = SystemProperties.getInteger(DeadLetterQueue.class.getName() + ".replayRate", 600);
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String SUFFIX = ".dl";
+
+    private static volatile DeadLetterQueue instance;
+
+    private static boolean initialized;
+
+    private final File directory;
+
+    private final NotificationDispatcher dispatcher;
+
+    private final ConcurrentNavigableMap<Long, DeadLetter> entries = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong nextId = new AtomicLong();
+
+    private volatile Replay replay;
+
+    /**
+     * @param directory Directory holding the entries.
+     * @param dispatcher Dispatcher delivering the replayed entries.
+     */
+    DeadLetterQueue(File directory, NotificationDispatcher dispatcher) throws IOException {
+        this.directory = directory;
+        this.dispatcher = dispatcher;
+        Files.createDirectories(directory.toPath());
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    DeadLetter entry = readHeader(file);
+                    entries.put(entry.getId(), entry);
+                    nextId.accumulateAndGet(entry.getId() + 1, Math::max);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring unreadable dead letter " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The queue, or null if it is disabled or could not be opened.
+     */
+    @CheckForNull
+    public static DeadLetterQueue get() {
+        DeadLetterQueue queue = instance;
+        if (queue != null || !ENABLED) {
+            return queue;
+        }
+        synchronized (DeadLetterQueue.class) {
+            if (!initialized) {
+                initialized = true;
+                File directory = new File(Jenkins.get().getRootDir(), "notification-dead-letters");
+                try {
+                    instance = new DeadLetterQueue(directory, NotificationDispatcher.get());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to open " + directory + ", dead letters won't be kept", e);
+                }
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Keeps a notification that could not be delivered, taking it over from the {@link NotificationOutbox}.
+     * @param notification Notification given up, with its {@link Notification#getLastError() last error}.
+     */
+    void add(Notification notification) {
+        long id = nextId.getAndIncrement();
+        DeadLetter entry = new DeadLetter(
+                id,
+                notification.getRunId(),
+                notification.getPhase(),
+                notification.getUrlIdString(),
+                notification.getDestination(),
+                String.valueOf(notification.getLastError()),
+                System.currentTimeMillis(),
+                notification.getPayload().length);
+        File file = fileOf(id);
+        File tmp = new File(directory, id + ".tmp");
+        try {
+            byte[] record = NotificationOutbox.encode(notification);
+            try (DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+                out.writeByte(FORMAT_VERSION);
+                out.writeUTF(entry.getRunId());
+                out.writeUTF(entry.getPhase().name());
+                NotificationOutbox.writeString(out, entry.getUrlIdString());
+                NotificationOutbox.writeString(out, entry.getDestination());
+                NotificationOutbox.writeString(out, entry.getError());
+                out.writeLong(entry.failedAt);
+                out.writeInt(entry.getSize());
+                out.writeInt(record.length);
+                out.write(record);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            // Still in the outbox, if enabled.
+            LOGGER.log(Level.WARNING, "Failed to keep dead letter " + notification, e);
+            deleteQuietly(tmp);
+            return;
+        }
+        entries.put(id, entry);
+        NotificationOutbox outbox = NotificationOutbox.get();
+        if (outbox != null) {
+            outbox.acknowledge(notification);
+        }
+        while (entries.size() > MAX_ENTRIES) {
+            Map.Entry<Long, DeadLetter> oldest = entries.pollFirstEntry();
+            if (oldest == null) {
+                break;
+            }
+            LOGGER.log(Level.WARNING, "Too many dead letters, dropping {0}", oldest.getValue());
+            deleteQuietly(fileOf(oldest.getKey()));
+        }
+    }
+
+    /**
+     * @param filter Text to look for in the run, phase, endpoint, destination or error of the entries, may be null.
+     * @return Matching entries, oldest first.
+     */
+    public List<DeadLetter> getEntries(@CheckForNull String filter) {
+        List<DeadLetter> matching = new ArrayList<>();
+        for (DeadLetter entry : entries.values()) {
+            if (entry.matches(filter)) {
+                matching.add(entry);
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * @param ids Ids of the entries to look up, unknown ones are skipped.
+     * @return Entries with these ids, oldest first.
+     */
+    public List<DeadLetter> getEntriesById(Collection<Long> ids) {
+        List<DeadLetter> found = new ArrayList<>();
+        for (DeadLetter entry : entries.values()) {
+            if (ids.contains(entry.getId())) {
+                found.add(entry);
+            }
+        }
+        return found;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Deletes entries for good.
+     * @return Number of entries deleted.
+     */
+    public int discard(Collection<DeadLetter> selected) {
+        int discarded = 0;
+        for (DeadLetter entry : selected) {
+            if (entries.remove(entry.getId(), entry)) {
+                deleteQuietly(fileOf(entry.getId()));
+                discarded++;
+            }
+        }
+        return discarded;
+    }
+
+    /**
+     * Delivers entries again in the background, oldest first, cancelling the replay still running if any. They leave
+     * the queue as they are dispatched.
+     * @param selected Entries to replay.
+     * @param ratePerMinute Maximum number of entries dispatched per minute, 0 or less for no limit.
+     * @return The replay, which can be followed and cancelled.
+     */
+    public synchronized Replay replay(Collection<DeadLetter> selected, int ratePerMinute) {
+        Replay previous = replay;
+        if (previous != null) {
+            // Otherwise the receiver would get the entries of both at the sum of their rates.
+            previous.cancel();
+        }
+        Replay started = new Replay(selected, ratePerMinute);
+        replay = started;
+        started.next();
+        return started;
+    }
+
+    /**
+     * @return The last replay started, or null if none was.
+     */
+    @CheckForNull
+    public Replay getReplay() {
+        return replay;
+    }
+
+    /**
+     * Reads an entry back and takes it out of the queue.
+     * @return The notification, as if it was just created, or null if the entry is gone or unreadable.
+     */
+    @CheckForNull
+    private Notification take(DeadLetter entry) {
+        File file = fileOf(entry.getId());
+        if (!entries.remove(entry.getId(), entry)) {
+            return null;
+        }
+        try (DataInputStream in = open(file)) {
+            skipHeader(in);
+            byte[] record = new byte[in.readInt()];
+            in.readFully(record);
+            return NotificationOutbox.decode(record).renew();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Dropping unreadable dead letter " + file, e);
+            return null;
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    private File fileOf(long id) {
+        return new File(directory, id + SUFFIX);
+    }
+
+    private static DataInputStream open(File file) throws IOException {
+        InputStream in = Files.newInputStream(file.toPath());
+        return new DataInputStream(new BufferedInputStream(in));
+    }
+
+    private static DeadLetter readHeader(File file) throws IOException {
+        String name = file.getName();
+        long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        try (DataInputStream in = open(file)) {
+            checkVersion(in);
+            return new DeadLetter(
+                    id,
+                    in.readUTF(),
+                    Phase.valueOf(in.readUTF()),
+                    NotificationOutbox.readString(in),
+                    NotificationOutbox.readString(in),
+                    NotificationOutbox.readString(in),
+                    in.readLong(),
+                    in.readInt());
+        }
+    }
+
+    private static void skipHeader(DataInputStream in) throws IOException {
+        checkVersion(in);
+        in.readUTF();
+        in.readUTF();
+        NotificationOutbox.readString(in);
+        NotificationOutbox.readString(in);
+        NotificationOutbox.readString(in);
+        in.readLong();
+        in.readInt();
+    }
+
+    private static void checkVersion(DataInputStream in) throws IOException {
+        int version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported dead letter version " + version);
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete " + file, e);
+        }
+    }
+
+    /**
+     * A notification that ran out of retries.
+     */
+    public static final class DeadLetter {
+        private final long id;
+        private final String runId;
+        private final Phase phase;
+        private final String urlIdString;
+        private final String destination;
+        private final String error;
+        private final long failedAt;
+        private final int size;
+
+        DeadLetter(
+                long id,
+                String runId,
+                Phase phase,
+                String urlIdString,
+                String destination,
+                String error,
+                long failedAt,
+                int size) {
+            this.id = id;
+            this.runId = runId;
+            this.phase = phase;
+            this.urlIdString = urlIdString;
+            this.destination = destination;
+            this.error = error;
+            this.failedAt = failedAt;
+            this.size = size;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getRunId() {
+            return runId;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public String getUrlIdString() {
+            return urlIdString;
+        }
+
+        public String getDestination() {
+            return destination;
+        }
+
+        /**
+         * @return Why the last delivery attempt failed.
+         */
+        public String getError() {
+            return error;
+        }
+
+        public Date getFailedAt() {
+            return new Date(failedAt);
+        }
+
+        /**
+         * @return Size of the payload in bytes.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        boolean matches(@CheckForNull String filter) {
+            if (filter == null || filter.isBlank()) {
+                return true;
+            }
+            String needle = filter.trim().toLowerCase(Locale.ROOT);
+            for (String field : new String[] {runId, phase.name(), urlIdString, destination, error}) {
+                if (field != null && field.toLowerCase(Locale.ROOT).contains(needle)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return runId + " " + phase + " -> " + urlIdString;
+        }
+    }
+
+    /**
+     * Replay of a set of entries, dispatched one by one at a bounded rate.
+     */
+    public final class Replay {
+        private final Queue<DeadLetter> pending;
+        private final int total;
+        private final TokenBucket limiter;
+        private final AtomicInteger dispatched = new AtomicInteger();
+        private final AtomicInteger processed = new AtomicInteger();
+        private volatile boolean cancelled;
+
+        private Replay(Collection<DeadLetter> selected, int ratePerMinute) {
+            this.pending = new ArrayDeque<>(selected);
+            this.total = selected.size();
+            this.limiter = TokenBucket.of(ratePerMinute, 1);
+        }
+
+        /**
+         * Schedules the next entry, which is read and dispatched on a dispatcher worker as both may block.
+         */
+        private synchronized void next() {
+            if (cancelled) {
+                return;
+            }
+            DeadLetter entry = pending.poll();
+            if (entry == null) {
+                LOGGER.log(Level.INFO, "Replayed {0} dead letters", dispatched.get());
+                return;
+            }
+            Runnable task = () -> {
+                dispatch(entry);
+                next();
+            };
+            long wait = limiter != null ? limiter.reserve(0) : 0;
+            if (wait > 0) {
+                dispatcher.getTimer().schedule(() -> submit(task), wait, TimeUnit.MILLISECONDS);
+            } else {
+                submit(task);
+            }
+        }
+
+        private void submit(Runnable task) {
+            try {
+                dispatcher.execute(Priority.LOW, task);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the entries not dispatched yet stay in the queue.
+                cancel();
+            }
+        }
+
+        private void dispatch(DeadLetter entry) {
+            if (cancelled) {
+                return;
+            }
+            Notification notification = take(entry);
+            if (notification != null) {
+                dispatcher.dispatch(notification.getRunId(), List.of(notification));
+                dispatched.incrementAndGet();
+            }
+            processed.incrementAndGet();
+        }
+
+        /**
+         * Stops dispatching entries, those not dispatched yet stay in the queue.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            return cancelled || processed.get() >= total;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        /**
+         * @return Number of entries dispatched so far.
+         */
+        public int getDispatched() {
+            return dispatched.get();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import hudson.security.Permission;
+import java.util.Map;
+import jenkins.model.Jenkins;
+
+/**
+ * Manage Jenkins page showing how the {@link NotificationDispatcher} keeps up: its work queue, by
+ * {@link PriorityLaneQueue lane}, its {@link NotificationBacklog}, with the notifications shed so far, and the
+ * {@link Protocol#UDP} payloads too large for a datagram.
+ */
+@Extension
+public class DeliveryManagementLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "symbol-analytics";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "notification-delivery";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.DeliveryManagementLink_DisplayName();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.DeliveryManagementLink_Description();
+    }
+
+    @Override
+    public Category getCategory() {
+        return Category.STATUS;
+    }
+
+    @Override
+    public Permission getRequiredPermission() {
+        return Jenkins.ADMINISTER;
+    }
+
+    /**
+     * @return Number of notification phases waiting for a worker.
+     */
+    public int getQueueSize() {
+        return NotificationDispatcher.get().getQueueSize();
+    }
+
+    /**
+     * @return Depth and waiting times of the work queue, by lane.
+     */
+    public Map<Priority, PriorityLaneQueue.LaneStats> getLaneStats() {
+        return NotificationDispatcher.get().getLaneStats();
+    }
+
+    /**
+     * @return Number of notifications waiting for their batch to fill.
+     */
+    public int getBatchedCount() {
+        return NotificationDispatcher.get().getBatchedCount();
+    }
+
+    /**
+     * @return What the backlog does when full.
+     */
+    public String getOverflowPolicy() {
+        return NotificationDispatcher.get().getBacklog().getPolicy().name();
+    }
+
+    /**
+     * @return Number of notifications in the backlog.
+     */
+    public int getBacklogEvents() {
+        return NotificationDispatcher.get().getBacklog().getEvents();
+    }
+
+    /**
+     * @return Total size of the payloads in the backlog.
+     */
+    public long getBacklogBytes() {
+        return NotificationDispatcher.get().getBacklog().getBytes();
+    }
+
+    /**
+     * @return Number of notifications waiting on disk.
+     */
+    public int getSpilled() {
+        return NotificationDispatcher.get().getBacklog().getSpilled();
+    }
+
+    /**
+     * @return Number of notifications shed so far, by phase.
+     */
+    public Map<Phase, Long> getShedCounts() {
+        return NotificationDispatcher.get().getBacklog().getShedCounts();
+    }
+
+    /**
+     * @return Number of UDP notifications larger than a datagram, since Jenkins started.
+     */
+    public long getUdpOversized() {
+        return UdpTransport.getOversized();
+    }
+
+    /**
+     * @return Number of UDP notifications sent in fragments, since Jenkins started.
+     */
+    public long getUdpFragmented() {
+        return UdpTransport.getFragmented();
+    }
+}
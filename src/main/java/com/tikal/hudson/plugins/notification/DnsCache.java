@@ -0,0 +1,173 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Addresses of the {@link Protocol#TCP} and {@link Protocol#UDP} receivers, so notifications don't wait for the
+ * resolver.
+ * <p>
+ * Addresses are kept for {@code com.tikal.hudson.plugins.notification.DnsCache.positiveTtl} milliseconds (default
+ * 60000, 0 to resolve every time) and failed lookups for {@code ...DnsCache.negativeTtl} milliseconds (default
+ * 10000). Addresses in use are looked up again in the background once 80% of their time to live has passed, so
+ * busy receivers are never resolved on the way; if that lookup fails, the known addresses are kept until they
+ * expire. An address that could not be connected to goes last, see {@link #demote}.
+ */
+final class DnsCache {
+
+    private static final Logger LOGGER = Logger.getLogger(DnsCache.class.getName());
+
+    static final long POSITIVE_TTL = SystemProperties.getLong(DnsCache.class.getName() + ".positiveTtl", 60000L);
+
+    static final long NEGATIVE_TTL = SystemProperties.getLong(DnsCache.class.getName() + ".negativeTtl", 10000L);
+
+    /**
+     * Hosts cached at most, beyond which expired entries are dropped.
+     */
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final ConcurrentMap<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    private static final ThreadPoolExecutor REFRESHER = newRefresher();
+
+    private DnsCache() {}
+
+    private static ThreadPoolExecutor newRefresher() {
+        ThreadPoolExecutor refresher = new ThreadPoolExecutor(
+                1,
+                1,
+                60L,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_ENTRIES),
+                new NamingThreadFactory(new DaemonThreadFactory(), "DnsCache refresh"));
+        refresher.allowCoreThreadTimeOut(true);
+        return refresher;
+    }
+
+    /**
+     * @return Addresses of the host, preferred first.
+     * @throws UnknownHostException If the host could not be resolved, recently.
+     */
+    static List<InetAddress> resolve(String hostname) throws UnknownHostException {
+        if (POSITIVE_TTL <= 0) {
+            return Arrays.asList(InetAddress.getAllByName(hostname));
+        }
+        long now = System.nanoTime();
+        Entry entry = ENTRIES.get(hostname);
+        if (entry == null || now - entry.expiresAt >= 0) {
+            entry = lookup(hostname);
+            if (ENTRIES.size() >= MAX_ENTRIES) {
+                ENTRIES.values().removeIf(e -> now - e.expiresAt >= 0);
+            }
+            ENTRIES.put(hostname, entry);
+        } else if (entry.addresses != null && now - entry.refreshAt >= 0) {
+            refresh(hostname, entry);
+        }
+        if (entry.addresses == null) {
+            throw new UnknownHostException(hostname);
+        }
+        return entry.addresses;
+    }
+
+    /**
+     * Moves an address that could not be reached after the other addresses of its host, until they are looked up
+     * again.
+     */
+    static void demote(String hostname, InetAddress address) {
+        ENTRIES.computeIfPresent(hostname, (k, entry) -> {
+            if (entry.addresses == null || entry.addresses.size() < 2 || !entry.addresses.contains(address)) {
+                return entry;
+            }
+            List<InetAddress> addresses = new ArrayList<>(entry.addresses);
+            addresses.remove(address);
+            addresses.add(address);
+            // Same refresh state: a refresh in flight stays the only one, and still clears it if it fails.
+            return new Entry(
+                    Collections.unmodifiableList(addresses), entry.refreshAt, entry.expiresAt, entry.refreshing);
+        });
+    }
+
+    private static void refresh(String hostname, Entry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            REFRESHER.execute(() -> {
+                Entry refreshed = lookup(hostname);
+                if (refreshed.addresses != null) {
+                    ENTRIES.put(hostname, refreshed);
+                } else {
+                    // Kept until it expires, the next use tries again.
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private static Entry lookup(String hostname) {
+        long now = System.nanoTime();
+        try {
+            List<InetAddress> addresses =
+                    Collections.unmodifiableList(Arrays.asList(InetAddress.getAllByName(hostname)));
+            long ttl = TimeUnit.MILLISECONDS.toNanos(POSITIVE_TTL);
+            return new Entry(addresses, now + ttl / 5 * 4, now + ttl);
+        } catch (UnknownHostException e) {
+            LOGGER.log(Level.FINE, "Failed to resolve " + hostname, e);
+            long ttl = TimeUnit.MILLISECONDS.toNanos(NEGATIVE_TTL);
+            return new Entry(null, now + ttl, now + ttl);
+        }
+    }
+
+    private static final class Entry {
+        /**
+         * Null if the lookup failed.
+         */
+        private final List<InetAddress> addresses;
+
+        private final long refreshAt;
+        private final long expiresAt;
+        private final AtomicBoolean refreshing;
+
+        Entry(List<InetAddress> addresses, long refreshAt, long expiresAt) {
+            this(addresses, refreshAt, expiresAt, new AtomicBoolean());
+        }
+
+        Entry(List<InetAddress> addresses, long refreshAt, long expiresAt, AtomicBoolean refreshing) {
+            this.addresses = addresses;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+            this.refreshing = refreshing;
+        }
+    }
+}
@@ -24,6 +24,20 @@ public class Endpoint {
 
     public static final String DEFAULT_BRANCH = ".*";
 
+    public static final Integer DEFAULT_RATE_LIMIT = 0;
+
+    public static final Integer DEFAULT_BURST = 1;
+
+    public static final Integer DEFAULT_BATCH_SIZE = 0;
+
+    public static final Integer DEFAULT_BATCH_BYTES = 1024 * 1024;
+
+    public static final Integer DEFAULT_BATCH_DELAY = 1000;
+
+    public static final String DEFAULT_MUST_DELIVER = "FINALIZED";
+
+    public static final Integer DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
     private Protocol protocol = Protocol.HTTP;
 
     /**
@@ -49,6 +63,30 @@ public class Endpoint {
 
     private String branch = ".*";
 
+    private Integer rateLimit = DEFAULT_RATE_LIMIT;
+
+    private Integer burst = DEFAULT_BURST;
+
+    private Integer batchSize = DEFAULT_BATCH_SIZE;
+
+    private Integer batchBytes = DEFAULT_BATCH_BYTES;
+
+    private Integer batchDelay = DEFAULT_BATCH_DELAY;
+
+    private boolean coalescing;
+
+    private String mustDeliver = DEFAULT_MUST_DELIVER;
+
+    private Priority priority;
+
+    private Compression compression;
+
+    private Integer compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    private Framing framing;
+
+    private boolean acknowledged;
+
     /**
      * Adds a new endpoint for notifications
      * @param protocol - Protocol to use
@@ -137,7 +175,7 @@ public class Endpoint {
 
     /**
      * Format of the message sent to the endpoint should
-     * @param format 'XML' or 'JSON'
+     * @param format 'XML', 'JSON', 'CBOR' or 'MESSAGE_PACK'
      */
     @DataBoundSetter
     public void setFormat(Format format) {
@@ -187,6 +225,176 @@ public class Endpoint {
         this.retries = retries;
     }
 
+    public Integer getRateLimit() {
+        return this.rateLimit == null ? DEFAULT_RATE_LIMIT : this.rateLimit;
+    }
+
+    /**
+     * Maximum sustained rate of notifications to this endpoint, extra notifications are delayed.
+     * @param rateLimit - Notifications per minute.  Default 0, unlimited.
+     */
+    @DataBoundSetter
+    public void setRateLimit(Integer rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    public Integer getBurst() {
+        return this.burst == null ? DEFAULT_BURST : this.burst;
+    }
+
+    /**
+     * Number of notifications sent at once, before the rate limit applies.
+     * @param burst - Number of notifications.  Default 1.
+     */
+    @DataBoundSetter
+    public void setBurst(Integer burst) {
+        this.burst = burst;
+    }
+
+    public Integer getBatchSize() {
+        return this.batchSize == null ? DEFAULT_BATCH_SIZE : this.batchSize;
+    }
+
+    /**
+     * Sends notifications in batches, as a JSON array or an XML list, instead of one by one.
+     * @param batchSize - Maximum number of notifications per batch.  Default 0, no batching.
+     */
+    @DataBoundSetter
+    public void setBatchSize(Integer batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public Integer getBatchBytes() {
+        return this.batchBytes == null ? DEFAULT_BATCH_BYTES : this.batchBytes;
+    }
+
+    /**
+     * A batch is sent as soon as it reaches this size.
+     * @param batchBytes - Size in bytes.  Default 1 MB.
+     */
+    @DataBoundSetter
+    public void setBatchBytes(Integer batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+    public Integer getBatchDelay() {
+        return this.batchDelay == null ? DEFAULT_BATCH_DELAY : this.batchDelay;
+    }
+
+    /**
+     * A batch is sent at the latest this long after its first notification.
+     * @param batchDelay - Delay in ms.  Default 1000.
+     */
+    @DataBoundSetter
+    public void setBatchDelay(Integer batchDelay) {
+        this.batchDelay = batchDelay;
+    }
+
+    public boolean isBatched() {
+        return getBatchSize() > 1;
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Skips pending notifications of a run once a later phase of the same run is waiting for this endpoint.
+     * @param coalescing - Default false, every phase is delivered.
+     */
+    @DataBoundSetter
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    public String getMustDeliver() {
+        return this.mustDeliver == null ? DEFAULT_MUST_DELIVER : this.mustDeliver;
+    }
+
+    /**
+     * Phases always delivered, even when coalescing.
+     * @param mustDeliver - Comma separated phases, e.g. 'COMPLETED,FINALIZED'.  Default 'FINALIZED'.
+     */
+    @DataBoundSetter
+    public void setMustDeliver(String mustDeliver) {
+        this.mustDeliver = mustDeliver;
+    }
+
+    public boolean isMustDeliver(Phase phase) {
+        for (String name : getMustDeliver().split(",")) {
+            if (name.trim().equalsIgnoreCase(phase.name())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Lane of the notifications to this endpoint when deliveries are backed up.
+     * @param priority - HIGH, NORMAL or LOW.  Default null, failed builds are HIGH, queued or started builds LOW and
+     * the rest NORMAL.
+     */
+    @DataBoundSetter
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Compresses large payloads, over HTTP and TCP.
+     * @param compression - NONE, GZIP or DEFLATE.  Default null, payloads are sent as is.
+     */
+    @DataBoundSetter
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public Integer getCompressionThreshold() {
+        return this.compressionThreshold == null ? DEFAULT_COMPRESSION_THRESHOLD : this.compressionThreshold;
+    }
+
+    /**
+     * Payloads smaller than this are sent uncompressed, as compressing them saves little.
+     * @param compressionThreshold - Size in bytes.  Default 1024.
+     */
+    @DataBoundSetter
+    public void setCompressionThreshold(Integer compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public Framing getFraming() {
+        return framing;
+    }
+
+    /**
+     * Sends TCP notifications over a persistent connection, delimited as given.
+     * @param framing - LENGTH_PREFIXED or NEWLINE_DELIMITED.  Default null, one connection per notification.
+     */
+    @DataBoundSetter
+    public void setFraming(Framing framing) {
+        this.framing = framing;
+    }
+
+    public boolean isAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * Waits for the receiver to acknowledge every notification, on a persistent TCP connection.
+     * @param acknowledged - Default false, a notification is sent once written.
+     */
+    @DataBoundSetter
+    public void setAcknowledged(boolean acknowledged) {
+        this.acknowledged = acknowledged;
+    }
+
     protected Object readResolve() {
         if (url != null) {
             // Upgrade, this is a public URL
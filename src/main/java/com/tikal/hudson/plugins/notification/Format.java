@@ -16,31 +16,261 @@ package com.tikal.hudson.plugins.notification;
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
 import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.security.NoTypePermission;
+import com.thoughtworks.xstream.security.NullPermission;
+import com.thoughtworks.xstream.security.PrimitiveTypePermission;
+import com.tikal.hudson.plugins.notification.model.BuildState;
 import com.tikal.hudson.plugins.notification.model.JobState;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 public enum Format {
-    XML {
-        private final transient XStream xstream = new XStream();
+    XML("application/xml;charset=UTF-8") {
+        @Override
+        protected byte[] serialize(JobState jobState) throws IOException {
+            return write(jobState, out -> {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                XSTREAM.toXML(jobState, writer);
+                writer.flush();
+            });
+        }
+
+        @Override
+        protected byte[] serialize(List<byte[]> jobStates) {
+            // Same document XStream writes for a list of job states.
+            return join(jobStates, "<list>\n", "\n", "\n</list>");
+        }
+    },
+    JSON("application/json;charset=UTF-8") {
+        private final transient Gson gson = newGson();
 
         @Override
         protected byte[] serialize(JobState jobState) throws IOException {
-            xstream.processAnnotations(JobState.class);
-            return xstream.toXML(jobState).getBytes(StandardCharsets.UTF_8);
+            return write(jobState, out -> {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                gson.toJson(jobState, writer);
+                writer.flush();
+            });
+        }
+
+        @Override
+        protected byte[] serialize(List<byte[]> jobStates) {
+            return join(jobStates, "[", ",", "]");
         }
     },
-    JSON {
-        private final transient Gson gson = new GsonBuilder()
-                .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
-                .create();
+    /**
+     * Same fields as {@link #JSON}, in <a href="https://www.rfc-editor.org/rfc/rfc8949">CBOR</a>.
+     */
+    CBOR("application/cbor") {
+        private final transient Gson gson = newGson();
+
+        @Override
+        protected byte[] serialize(JobState jobState) throws IOException {
+            JsonElement tree = gson.toJsonTree(jobState);
+            return write(jobState, out -> BinaryEncoding.CBOR.write(out, tree));
+        }
+
+        @Override
+        protected byte[] serialize(List<byte[]> jobStates) {
+            return join(jobStates, BinaryEncoding.CBOR.arrayHeader(jobStates.size()));
+        }
+
+        @Override
+        public boolean isBinary() {
+            return true;
+        }
+    },
+    /**
+     * Same fields as {@link #JSON}, in <a href="https://msgpack.org">MessagePack</a>.
+     */
+    MESSAGE_PACK("application/msgpack") {
+        private final transient Gson gson = newGson();
 
         @Override
         protected byte[] serialize(JobState jobState) throws IOException {
-            return gson.toJson(jobState).getBytes(StandardCharsets.UTF_8);
+            JsonElement tree = gson.toJsonTree(jobState);
+            return write(jobState, out -> BinaryEncoding.MESSAGE_PACK.write(out, tree));
+        }
+
+        @Override
+        protected byte[] serialize(List<byte[]> jobStates) {
+            return join(jobStates, BinaryEncoding.MESSAGE_PACK.arrayHeader(jobStates.size()));
+        }
+
+        @Override
+        public boolean isBinary() {
+            return true;
         }
     };
 
+    /**
+     * Writes the {@link #XML} payloads, shared by all of them.
+     */
+    static final XStream XSTREAM = newXStream();
+
+    /**
+     * Length of the log from which payloads are serialized twice to be written straight into an array of their size.
+     */
+    static final int EXACT_SIZE_LOG_LENGTH = 1024 * 1024;
+
+    private final String contentType;
+
+    Format(String contentType) {
+        this.contentType = contentType;
+    }
+
     protected abstract byte[] serialize(JobState jobState) throws IOException;
+
+    /**
+     * Combines job states into a single message, a JSON array, an XML list or a binary array.
+     * @param jobStates Job states, each serialized by {@link #serialize(JobState)}.
+     */
+    protected abstract byte[] serialize(List<byte[]> jobStates);
+
+    /**
+     * @return Media type of the payloads, sent as the {@code Content-Type} of {@link Protocol#HTTP} notifications.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return Whether payloads are binary rather than UTF-8 text.
+     */
+    public boolean isBinary() {
+        return false;
+    }
+
+    private static Gson newGson() {
+        return new GsonBuilder()
+                .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+                .create();
+    }
+
+    /**
+     * XStream may be shared by threads once configured, but not while being configured: the annotations are processed
+     * here, once, rather than before each job state. It only ever writes job states, so it is not allowed to read any
+     * other type.
+     */
+    private static XStream newXStream() {
+        XStream xstream = new XStream();
+        xstream.processAnnotations(JobState.class);
+        xstream.addPermission(NoTypePermission.NONE);
+        xstream.addPermission(NullPermission.NULL);
+        xstream.addPermission(PrimitiveTypePermission.PRIMITIVES);
+        xstream.allowTypes(new Class[] {String.class, StringBuilder.class, Phase.class});
+        xstream.allowTypeHierarchy(Collection.class);
+        xstream.allowTypeHierarchy(Map.class);
+        xstream.allowTypesByWildcard(new String[] {JobState.class.getPackage().getName() + ".*"});
+        return xstream;
+    }
+
+    /**
+     * Serialization writes straight to bytes, rather than to a string encoded afterwards. Most payloads are written to
+     * a buffer starting large enough for the log, then trimmed to size. Payloads of a large log are written twice
+     * instead, first only to count their bytes, then into an array of exactly that size: the log is never in memory
+     * more than twice, in the job state and in the payload, at the cost of serializing it twice.
+     */
+    private static byte[] write(JobState jobState, Writing writing) throws IOException {
+        BuildState build = jobState.getBuild();
+        int log = build != null && build.getLog() != null ? build.getLog().length() : 0;
+        if (log < EXACT_SIZE_LOG_LENGTH) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(log + 8192);
+            writing.writeTo(out);
+            return out.toByteArray();
+        }
+        ArrayOutputStream counter = new ArrayOutputStream(null);
+        writing.writeTo(counter);
+        if (counter.size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Payload of " + counter.size + " bytes is too large");
+        }
+        ArrayOutputStream out = new ArrayOutputStream(new byte[(int) counter.size]);
+        writing.writeTo(out);
+        if (out.size != counter.size) {
+            throw new IOException("Payload changed while being serialized");
+        }
+        return out.array;
+    }
+
+    private static byte[] join(List<byte[]> items, String prefix, String separator, String suffix) {
+        return join(
+                items,
+                prefix.getBytes(StandardCharsets.UTF_8),
+                separator.getBytes(StandardCharsets.UTF_8),
+                suffix.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Binary arrays are their header followed by their items, as is.
+     */
+    private static byte[] join(List<byte[]> items, byte[] header) {
+        return join(items, header, new byte[0], new byte[0]);
+    }
+
+    private static byte[] join(List<byte[]> items, byte[] prefix, byte[] separator, byte[] suffix) {
+        int size = prefix.length + suffix.length + separator.length * items.size();
+        for (byte[] item : items) {
+            size += item.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        out.writeBytes(prefix);
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                out.writeBytes(separator);
+            }
+            out.writeBytes(items.get(i));
+        }
+        out.writeBytes(suffix);
+        return out.toByteArray();
+    }
+
+    /**
+     * Serialization of a payload, which may be run several times.
+     */
+    private interface Writing {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes into an array of a known size, or only counts the bytes written if there is no array.
+     */
+    private static final class ArrayOutputStream extends OutputStream {
+        private final byte[] array;
+        private long size;
+
+        ArrayOutputStream(byte[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (array != null) {
+                if (size >= array.length) {
+                    throw new IOException("Payload changed while being serialized");
+                }
+                array[(int) size] = (byte) b;
+            }
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (array != null) {
+                if (size + len > array.length) {
+                    throw new IOException("Payload changed while being serialized");
+                }
+                System.arraycopy(b, off, array, (int) size, len);
+            }
+            size += len;
+        }
+    }
 }
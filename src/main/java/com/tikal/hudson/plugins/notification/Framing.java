@@ -0,0 +1,62 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * How {@link Protocol#TCP} notifications are delimited on a persistent connection, see {@link TcpTransport}.
+ * Without framing, every notification gets a connection of its own, ended once the payload is written.
+ */
+public enum Framing {
+    /**
+     * Payload preceded by its length, as a 4-byte big-endian integer. Compressed payloads start with their gzip or
+     * zlib header.
+     */
+    LENGTH_PREFIXED,
+    /**
+     * Payload followed by a line feed, for line oriented receivers. Payloads are never compressed.
+     */
+    NEWLINE_DELIMITED;
+
+    /**
+     * Newline-delimited frames only carry JSON, the one format serialized on a single line.
+     * @return Whether payloads of that format can be sent in frames of this kind.
+     */
+    boolean accepts(Format format) {
+        return this != NEWLINE_DELIMITED || format == null || format == Format.JSON;
+    }
+
+    /**
+     * @return The payload, compressed if needed, as a frame ready to be written.
+     */
+    byte[] frame(byte[] data, Compression compression) throws IOException {
+        if (this == NEWLINE_DELIMITED) {
+            for (byte b : data) {
+                if (b == '\n') {
+                    // Sending it again would fail the same way.
+                    throw new IllegalArgumentException(
+                            "Payload spans several lines and can't be sent newline delimited");
+                }
+            }
+            return ByteBuffer.allocate(data.length + 1).put(data).put((byte) '\n').array();
+        }
+        byte[] payload = compression != null ? compression.compress(data) : data;
+        return ByteBuffer.allocate(4 + payload.length)
+                .putInt(payload.length)
+                .put(payload)
+                .array();
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * An HTTP receiver answered a notification with anything but a 2xx status.
+ * <p>
+ * Only statuses telling the receiver may accept the notification later are worth retrying: 408, 425, 429, and 5xx
+ * but 501 and 505. Other statuses mean the receiver will never accept it. With 429 and 503 in particular, the
+ * receiver may tell how long to wait with a {@code Retry-After} header.
+ */
+final class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    private final long retryAfter;
+
+    HttpStatusException(int status, long retryAfter) {
+        super("Receiver responded with HTTP " + status
+                + (retryAfter >= 0 ? ", retry after " + retryAfter + " ms" : ""));
+        this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @param retryAfter Value of the {@code Retry-After} header, may be null.
+     * @throws HttpStatusException Unless the status is 2xx.
+     */
+    static void check(int status, String retryAfter) throws HttpStatusException {
+        if (status < 200 || status >= 300) {
+            throw new HttpStatusException(status, parseRetryAfter(retryAfter, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * @param value Either a number of seconds or an HTTP date.
+     * @param now Current time in milliseconds.
+     * @return Milliseconds to wait, or -1 if the value is missing or invalid.
+     */
+    static long parseRetryAfter(String value, long now) {
+        if (value == null || value.isBlank()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            // not a delay in seconds
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli() - now);
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    boolean isRetryable() {
+        return status == 408 || status == 425 || status == 429 || status >= 500 && status != 501 && status != 505;
+    }
+
+    /**
+     * @return Milliseconds the receiver asked to wait before sending again, or -1 if it did not say.
+     */
+    long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,366 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import hudson.ProxyConfiguration;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Sends {@link Protocol#HTTP} notifications with long-lived {@link HttpClient}s, so connections, and TLS sessions in
+ * particular, are reused from one notification to the next instead of being set up every time. HTTPS receivers are
+ * talked to over HTTP/2 when they support it. No thread waits for the receiver to respond, see {@link #sendAsync}.
+ * <p>
+ * There is one client per proxy setting: the Jenkins proxy configuration, the {@code http_proxy} environment
+ * variable, or no proxy. A client unused for {@code com.tikal.hudson.plugins.notification.HttpTransport.idleTimeout}
+ * milliseconds (default 300000) is closed, along with its connections. A client has at most
+ * {@code ...HttpTransport.maxConnectionsPerDestination} requests (default 32) in flight to the same receiver, see
+ * {@link NotificationDispatcher}, each on a connection of its own over HTTP/1.1 and all on one connection over
+ * HTTP/2. Setting {@code ...HttpTransport.pooled} to {@code false} goes back to a new
+ * {@link java.net.HttpURLConnection} per notification, with payloads never compressed.
+ */
+final class HttpTransport {
+
+    private static final Logger LOGGER = Logger.getLogger(HttpTransport.class.getName());
+
+    static final boolean POOLED = SystemProperties.getBoolean(HttpTransport.class.getName() + ".pooled", true);
+
+    static final long IDLE_TIMEOUT =
+            SystemProperties.getLong(HttpTransport.class.getName() + ".idleTimeout", 300000L);
+
+    static final int MAX_CONNECTIONS_PER_DESTINATION = Math.max(
+            1, SystemProperties.getInteger(HttpTransport.class.getName() + ".maxConnectionsPerDestination", 32));
+
+    /**
+     * Redirects followed for a single notification, to stop redirect loops.
+     */
+    static final int MAX_REDIRECTS = 5;
+
+    private static final String DIRECT = "direct";
+
+    private static final ConcurrentMap<Object, PooledClient> CLIENTS = new ConcurrentHashMap<>();
+
+    /**
+     * Receivers which rejected a compressed payload.
+     */
+    private static final Set<String> UNCOMPRESSED_DESTINATIONS = ConcurrentHashMap.newKeySet();
+
+    private HttpTransport() {}
+
+    /**
+     * Sends a notification and waits for the response.
+     */
+    static void send(String url, byte[] data, int timeout, String contentType) throws IOException {
+        try {
+            sendAsync(url, data, timeout, contentType).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while notifying " + url);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to notify " + url, cause);
+        }
+    }
+
+    /**
+     * Sends a notification without holding the calling thread while waiting for the response.
+     * @return Future completing once the receiver responded, after following temporary redirects.
+     */
+    static CompletableFuture<Void> sendAsync(String url, byte[] data, int timeout, String contentType) {
+        return post(url, data, null, timeout, contentType, MAX_REDIRECTS).thenCompose(HttpTransport::complete);
+    }
+
+    /**
+     * Sends a compressed notification. If the receiver answers 415 Unsupported Media Type, the notification is sent
+     * again uncompressed, as are the following ones to the same receiver.
+     */
+    static CompletableFuture<Void> sendAsync(
+            String url, byte[] data, int timeout, String contentType, Compression compression) {
+        String destination = Protocol.HTTP.getDestination(url);
+        if (compression == Compression.NONE || UNCOMPRESSED_DESTINATIONS.contains(destination)) {
+            return sendAsync(url, data, timeout, contentType);
+        }
+        byte[] compressed;
+        try {
+            compressed = compression.compress(data);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return post(url, compressed, compression.getContentEncoding(), timeout, contentType, MAX_REDIRECTS)
+                .thenCompose(response -> {
+                    if (response.statusCode() != 415) {
+                        return complete(response);
+                    }
+                    if (UNCOMPRESSED_DESTINATIONS.add(destination)) {
+                        LOGGER.log(
+                                Level.INFO,
+                                "{0} does not accept {1} payloads, sending uncompressed notifications to it",
+                                new Object[] {destination, compression.getContentEncoding()});
+                    }
+                    return sendAsync(url, data, timeout, contentType);
+                });
+    }
+
+    /**
+     * @return Future failing if the receiver did not accept the notification, see {@link HttpStatusException}.
+     */
+    private static CompletableFuture<Void> complete(HttpResponse<Void> response) {
+        try {
+            HttpStatusException.check(
+                    response.statusCode(),
+                    response.headers().firstValue("Retry-After").orElse(null));
+            return CompletableFuture.completedFuture(null);
+        } catch (HttpStatusException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @return Future of the final response, its body drained so the connection can be reused.
+     */
+    private static CompletableFuture<HttpResponse<Void>> post(
+            String url, byte[] data, String contentEncoding, int timeout, String contentType, int redirectsLeft) {
+        HttpRequest request;
+        PooledClient client;
+        CompletableFuture<HttpResponse<Void>> sent;
+        try {
+            request = newRequest(url, data, contentEncoding, timeout, contentType);
+            client = client();
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            sent = client.client.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+        } catch (RuntimeException e) {
+            client.release();
+            return CompletableFuture.failedFuture(e);
+        }
+        // The client can't be closed as idle until the response arrived.
+        return sent.whenComplete((response, error) -> client.release()).thenCompose(response -> {
+            // Only temporary redirects are followed, as with the HttpURLConnection transport.
+            if (response.statusCode() == 307) {
+                String location = response.headers().firstValue("Location").orElse(null);
+                if (location != null) {
+                    if (redirectsLeft <= 0) {
+                        return CompletableFuture.failedFuture(new IOException("Too many redirects notifying " + url));
+                    }
+                    String next = request.uri().resolve(location).toString();
+                    return post(next, data, contentEncoding, timeout, contentType, redirectsLeft - 1);
+                }
+            }
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+
+    private static HttpRequest newRequest(
+            String url, byte[] data, String contentEncoding, int timeout, String contentType) throws IOException {
+        URL targetUrl = new URL(url);
+        if (!targetUrl.getProtocol().startsWith("http")) {
+            throw new IllegalArgumentException("Not an http(s) url: " + url);
+        }
+        URI target = toUri(targetUrl);
+        boolean secure = "https".equalsIgnoreCase(target.getScheme());
+        HttpRequest.Builder request = HttpRequest.newBuilder(target)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(data))
+                // Cleartext HTTP/2 needs an upgrade most receivers don't handle, it is only negotiated over TLS.
+                .version(secure ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .header("Content-Type", contentType);
+        if (contentEncoding != null) {
+            request.header("Content-Encoding", contentEncoding);
+        }
+        String userInfo = targetUrl.getUserInfo();
+        if (userInfo != null) {
+            // Same encoding as the HttpURLConnection transport.
+            request.header(
+                    "Authorization",
+                    "Basic " + Base64.getEncoder().encodeToString(userInfo.getBytes(Charset.defaultCharset())));
+        }
+        if (timeout > 0) {
+            request.timeout(Duration.ofMillis(timeout));
+        }
+        return request.build();
+    }
+
+    /**
+     * @return The client for the current proxy settings, in use until {@link PooledClient#release() released}.
+     */
+    private static PooledClient client() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins != null && jenkins.proxy != null) {
+            // Reconfiguring the proxy replaces this instance, so the client is rebuilt.
+            return client(jenkins.proxy, ProxyConfiguration::newHttpClientBuilder);
+        }
+        if (EnvironmentProxy.URL != null) {
+            InetSocketAddress address = EnvironmentProxy.ADDRESS;
+            if (address == null) {
+                throw new IllegalArgumentException("Not an http(s) url: " + EnvironmentProxy.URL);
+            }
+            return client(address, () -> HttpClient.newBuilder().proxy(ProxySelector.of(address)));
+        }
+        return client(DIRECT, () -> HttpClient.newBuilder().proxy(HttpClient.Builder.NO_PROXY));
+    }
+
+    private static PooledClient client(Object key, Supplier<HttpClient.Builder> builder) {
+        long now = System.nanoTime();
+        evictIdle(now);
+        while (true) {
+            PooledClient pooled = CLIENTS.computeIfAbsent(
+                    key, k -> new PooledClient(builder.get().followRedirects(HttpClient.Redirect.NEVER).build()));
+            if (pooled.acquire(now)) {
+                return pooled;
+            }
+            // Closed as idle in the meantime, a new client takes its place.
+            CLIENTS.remove(key, pooled);
+        }
+    }
+
+    private static void evictIdle(long now) {
+        long idle = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT);
+        for (Map.Entry<Object, PooledClient> entry : CLIENTS.entrySet()) {
+            PooledClient pooled = entry.getValue();
+            if (now - pooled.lastUsed > idle && pooled.retireIfIdle(now - idle)) {
+                CLIENTS.remove(entry.getKey(), pooled);
+            }
+        }
+    }
+
+    /**
+     * Closes a client right away if the JVM allows it (Java 21 and later), otherwise its connections are closed
+     * once it is garbage collected.
+     */
+    private static void close(HttpClient client) {
+        if (client instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) client).close();
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Failed to close idle HTTP client", e);
+            }
+        }
+    }
+
+    /**
+     * @return The URL without its user info, which goes to the Authorization header instead.
+     */
+    private static URI toUri(URL url) throws MalformedURLException {
+        String authority = url.getPort() >= 0 ? url.getHost() + ":" + url.getPort() : url.getHost();
+        try {
+            return URI.create(url.getProtocol() + "://" + authority + url.getFile());
+        } catch (IllegalArgumentException e) {
+            MalformedURLException malformed = new MalformedURLException("Invalid URL: " + url);
+            malformed.initCause(e);
+            throw malformed;
+        }
+    }
+
+    private static final class PooledClient {
+        private final HttpClient client;
+        private volatile long lastUsed;
+        private int inFlight;
+        private boolean retired;
+
+        PooledClient(HttpClient client) {
+            this.client = client;
+            this.lastUsed = System.nanoTime();
+        }
+
+        /**
+         * @return False if the client was closed as idle, it must not be used.
+         */
+        synchronized boolean acquire(long now) {
+            if (retired) {
+                return false;
+            }
+            inFlight++;
+            lastUsed = now;
+            return true;
+        }
+
+        synchronized void release() {
+            inFlight--;
+            lastUsed = System.nanoTime();
+        }
+
+        /**
+         * Closes the client unless a request is in flight or it was used since.
+         * @return Whether it was retired.
+         */
+        synchronized boolean retireIfIdle(long usedBefore) {
+            if (!retired && inFlight == 0 && usedBefore - lastUsed > 0) {
+                close(client);
+                retired = true;
+            }
+            return retired;
+        }
+    }
+
+    /**
+     * The {@code http_proxy} environment variable, read once.
+     */
+    private static final class EnvironmentProxy {
+        static final String URL = fixEmpty(System.getenv("http_proxy"));
+
+        static final InetSocketAddress ADDRESS = parse(URL);
+
+        private static String fixEmpty(String value) {
+            return value == null || value.isEmpty() ? null : value;
+        }
+
+        private static InetSocketAddress parse(String value) {
+            if (value == null) {
+                return null;
+            }
+            try {
+                URL proxyUrl = new URL(value);
+                if (!proxyUrl.getProtocol().startsWith("http")) {
+                    return null;
+                }
+                int port = proxyUrl.getPort() > 0 ? proxyUrl.getPort() : 80;
+                // Resolved on every connection, like with the HttpURLConnection transport.
+                return InetSocketAddress.createUnresolved(proxyUrl.getHost(), port);
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+    }
+}
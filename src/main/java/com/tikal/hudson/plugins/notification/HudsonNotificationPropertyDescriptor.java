@@ -87,6 +87,34 @@ public final class HudsonNotificationPropertyDescriptor extends JobPropertyDescr
         return Endpoint.DEFAULT_RETRIES;
     }
 
+    public int getDefaultRateLimit() {
+        return Endpoint.DEFAULT_RATE_LIMIT;
+    }
+
+    public int getDefaultBurst() {
+        return Endpoint.DEFAULT_BURST;
+    }
+
+    public int getDefaultBatchSize() {
+        return Endpoint.DEFAULT_BATCH_SIZE;
+    }
+
+    public int getDefaultBatchBytes() {
+        return Endpoint.DEFAULT_BATCH_BYTES;
+    }
+
+    public int getDefaultBatchDelay() {
+        return Endpoint.DEFAULT_BATCH_DELAY;
+    }
+
+    public String getDefaultMustDeliver() {
+        return Endpoint.DEFAULT_MUST_DELIVER;
+    }
+
+    public int getDefaultCompressionThreshold() {
+        return Endpoint.DEFAULT_COMPRESSION_THRESHOLD;
+    }
+
     @Override
     public HudsonNotificationProperty newInstance(StaplerRequest req, JSONObject formData) throws FormException {
         List<Endpoint> endpoints = new ArrayList<>();
@@ -129,6 +157,28 @@ public final class HudsonNotificationPropertyDescriptor extends JobPropertyDescr
         endpoint.setLoglines(endpointObjectData.getInt("loglines"));
         endpoint.setBuildNotes(endpointObjectData.getString("notes"));
         endpoint.setBranch(endpointObjectData.getString("branch"));
+        endpoint.setRateLimit(endpointObjectData.optInt("rateLimit", Endpoint.DEFAULT_RATE_LIMIT));
+        endpoint.setBurst(endpointObjectData.optInt("burst", Endpoint.DEFAULT_BURST));
+        endpoint.setBatchSize(endpointObjectData.optInt("batchSize", Endpoint.DEFAULT_BATCH_SIZE));
+        endpoint.setBatchBytes(endpointObjectData.optInt("batchBytes", Endpoint.DEFAULT_BATCH_BYTES));
+        endpoint.setBatchDelay(endpointObjectData.optInt("batchDelay", Endpoint.DEFAULT_BATCH_DELAY));
+        endpoint.setCoalescing(endpointObjectData.optBoolean("coalescing"));
+        endpoint.setMustDeliver(endpointObjectData.optString("mustDeliver", Endpoint.DEFAULT_MUST_DELIVER));
+        String priority = endpointObjectData.optString("priority");
+        endpoint.setPriority(StringUtils.isEmpty(priority) ? null : Priority.valueOf(priority));
+        String compression = endpointObjectData.optString("compression");
+        endpoint.setCompression(StringUtils.isEmpty(compression) ? null : Compression.valueOf(compression));
+        endpoint.setCompressionThreshold(
+                endpointObjectData.optInt("compressionThreshold", Endpoint.DEFAULT_COMPRESSION_THRESHOLD));
+        String framing = endpointObjectData.optString("framing");
+        endpoint.setFraming(StringUtils.isEmpty(framing) ? null : Framing.valueOf(framing));
+        if (endpoint.getProtocol() == Protocol.TCP
+                && endpoint.getFraming() != null
+                && !endpoint.getFraming().accepts(endpoint.getFormat())) {
+            throw new FormException(
+                    endpoint.getFormat() + " payloads can't be sent newline delimited, only JSON", "framing");
+        }
+        endpoint.setAcknowledged(endpointObjectData.optBoolean("acknowledged"));
 
         return endpoint;
     }
@@ -0,0 +1,308 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * A notification for a single {@link Endpoint}, ready to be delivered.
+ * <p>
+ * Everything depending on the state of the run (the expanded URL and the serialized payload) is resolved when the
+ * notification is created, so it can be delivered later from a dispatcher thread without touching the run again.
+ */
+public class Notification {
+
+    private final String runId;
+
+    private final Phase phase;
+
+    private final Endpoint endpoint;
+
+    private final Protocol protocol;
+
+    private final String url;
+
+    private final String urlIdString;
+
+    private final byte[] payload;
+
+    private final int timeout;
+
+    private final int retries;
+
+    private final boolean json;
+
+    private final Format format;
+
+    private final TaskListener listener;
+
+    private final long createdAt;
+
+    private final Priority priority;
+
+    private final Compression compression;
+
+    private final Framing framing;
+
+    private final boolean acknowledged;
+
+    private volatile long outboxId = -1;
+
+    private volatile String lastError;
+
+    private String destination;
+
+    private String endpointKey;
+
+    @SuppressWarnings("rawtypes")
+    public Notification(
+            Run run,
+            Phase phase,
+            Endpoint endpoint,
+            String url,
+            String urlIdString,
+            byte[] payload,
+            TaskListener listener) {
+        this(
+                runIdOf(run),
+                phase,
+                endpoint,
+                url,
+                urlIdString,
+                payload,
+                listener,
+                System.currentTimeMillis(),
+                Priority.of(phase, run.getResult(), endpoint));
+    }
+
+    /**
+     * Recreates a notification without its run, e.g. when reading it back from the {@link NotificationOutbox}.
+     */
+    Notification(
+            String runId,
+            Phase phase,
+            Endpoint endpoint,
+            String url,
+            String urlIdString,
+            byte[] payload,
+            TaskListener listener,
+            long createdAt) {
+        this(
+                runId,
+                phase,
+                endpoint,
+                url,
+                urlIdString,
+                payload,
+                listener,
+                createdAt,
+                Priority.of(phase, null, endpoint));
+    }
+
+    Notification(
+            String runId,
+            Phase phase,
+            Endpoint endpoint,
+            String url,
+            String urlIdString,
+            byte[] payload,
+            TaskListener listener,
+            long createdAt,
+            Priority priority) {
+        this.runId = runId;
+        this.phase = phase;
+        this.endpoint = endpoint;
+        this.protocol = endpoint.getProtocol();
+        this.url = url;
+        this.urlIdString = urlIdString;
+        this.payload = payload;
+        this.timeout = endpoint.getTimeout();
+        this.retries = endpoint.getRetries();
+        this.json = endpoint.isJson();
+        this.format = endpoint.getFormat();
+        this.listener = listener;
+        this.createdAt = createdAt;
+        this.priority = priority;
+        this.compression = payload != null ? Compression.of(endpoint, payload.length) : Compression.NONE;
+        this.framing = endpoint.getFraming();
+        this.acknowledged = endpoint.isAcknowledged();
+    }
+
+    /**
+     * @return Copy of this notification created now, so that it gets the whole {@link RetryPolicy} again.
+     */
+    Notification renew() {
+        return new Notification(
+                runId, phase, endpoint, url, urlIdString, payload, listener, System.currentTimeMillis(), priority);
+    }
+
+    @SuppressWarnings("rawtypes")
+    static String runIdOf(Run run) {
+        String id = run.getExternalizableId();
+        return id != null ? id : run.toString();
+    }
+
+    /**
+     * @return Externalizable id of the run this notification is about.
+     */
+    public String getRunId() {
+        return runId;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @return Expanded URL, never shown in logs as it may come from a secret.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return Loggable description of the target, either the URL or the credentials id.
+     */
+    public String getUrlIdString() {
+        return urlIdString;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public boolean isJson() {
+        return json;
+    }
+
+    /**
+     * @return Format of the payload, null if the endpoint does not tell.
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @return Content type of the payload, as sent over {@link Protocol#HTTP}.
+     */
+    public String getContentType() {
+        return (format != null ? format : json ? Format.JSON : Format.XML).getContentType();
+    }
+
+    /**
+     * @return Receiver of the notification, as returned by {@link Protocol#getDestination(String)}.
+     */
+    public String getDestination() {
+        if (destination == null) {
+            destination = protocol != null && url != null ? protocol.getDestination(url) : String.valueOf(url);
+        }
+        return destination;
+    }
+
+    /**
+     * @return Identity of the endpoint that outlives the {@link Endpoint} instance, which is replaced whenever the job
+     * is saved or read back from the {@link NotificationOutbox}: the job, protocol, format and expanded URL. Never
+     * shown in logs as the URL may come from a secret.
+     */
+    String getEndpointKey() {
+        if (endpointKey == null) {
+            int build = runId != null ? runId.lastIndexOf('#') : -1;
+            String job = build >= 0 ? runId.substring(0, build) : runId;
+            endpointKey = job + ' ' + protocol + ' ' + format + ' ' + url;
+        }
+        return endpointKey;
+    }
+
+    public TaskListener getListener() {
+        return listener != null ? listener : TaskListener.NULL;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * @return Lane of the notification in the {@link NotificationDispatcher}.
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return How the payload is compressed when sent, {@link Compression#NONE} if it is below the threshold of the
+     * endpoint.
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return How the notification is delimited on a persistent {@link Protocol#TCP} connection, or null if it gets
+     * a connection of its own.
+     */
+    public Framing getFraming() {
+        return framing;
+    }
+
+    /**
+     * @return Whether the receiver acknowledges the notification, on a persistent {@link Protocol#TCP} connection.
+     */
+    public boolean isAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * @return Id of this notification in the {@link NotificationOutbox}, or -1 if it was not recorded there.
+     */
+    long getOutboxId() {
+        return outboxId;
+    }
+
+    void setOutboxId(long outboxId) {
+        this.outboxId = outboxId;
+    }
+
+    /**
+     * @return Why the last delivery attempt failed, or null if none did.
+     */
+    String getLastError() {
+        return lastError;
+    }
+
+    void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    @Override
+    public String toString() {
+        return runId + " " + phase + " -> " + urlIdString;
+    }
+}
@@ -0,0 +1,566 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounds the notifications held in memory by the {@link NotificationDispatcher}, from dispatch until delivered or
+ * given up, in number and in payload bytes.
+ * <p>
+ * What happens when the backlog is full depends on the {@link OverflowPolicy}. Whatever the policy,
+ * {@link Phase#FINALIZED} notifications are never shed, they are let in over the limit instead. Shed notifications
+ * are counted by phase.
+ * <p>
+ * Files are only written and read outside of the lock, spilled notifications are read back on the given executor
+ * rather than on the thread releasing room, which may be the selector or an HTTP client thread.
+ */
+final class NotificationBacklog {
+
+    private static final Logger LOGGER = Logger.getLogger(NotificationBacklog.class.getName());
+
+    enum OverflowPolicy {
+        /**
+         * Sheds the oldest notifications not being delivered yet, then the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Sheds a growing share of new notifications once the backlog is half full, all of them once it is full.
+         */
+        SAMPLE,
+        /**
+         * Writes new notifications to disk, and reads them back in order as the backlog drains.
+         */
+        SPILL,
+        /**
+         * Makes the caller wait for room, and sheds the notification if there is still none after a timeout.
+         */
+        BLOCK
+    }
+
+    private final int maxEvents;
+
+    private final long maxBytes;
+
+    private final OverflowPolicy policy;
+
+    private final long blockTimeout;
+
+    private final Supplier<File> spillDirectory;
+
+    private final Consumer<Notification> resubmit;
+
+    private final Executor unspiller;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * Notifications in the backlog, by identity.
+     */
+    private final Set<Notification> held = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Notifications in the backlog whose delivery did not start yet, oldest first.
+     */
+    private final Set<Notification> waiting = new LinkedHashSet<>();
+
+    /**
+     * Notifications shed while waiting, until their delivery would have started.
+     */
+    private final Set<Notification> evicted = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final Map<Phase, Long> shedCounts = new EnumMap<>(Phase.class);
+
+    private final Deque<SpillFile> spilled = new ArrayDeque<>();
+
+    private volatile File spillDir;
+
+    private long spillSequence;
+
+    /**
+     * Whether reading back spilled notifications is already handed over to the executor.
+     */
+    private boolean unspilling;
+
+    private int events;
+
+    private long bytes;
+
+    /**
+     * @param maxEvents Maximum number of notifications.
+     * @param maxBytes Maximum total size of their payloads.
+     * @param policy What to do when full.
+     * @param blockTimeout How long {@link OverflowPolicy#BLOCK} waits for room, in milliseconds.
+     * @param spillDirectory Where {@link OverflowPolicy#SPILL} writes notifications, only called when needed.
+     * @param resubmit Dispatches a notification read back from disk, it is already in the backlog.
+     * @param unspiller Runs the reading back of spilled notifications.
+     */
+    NotificationBacklog(
+            int maxEvents,
+            long maxBytes,
+            OverflowPolicy policy,
+            long blockTimeout,
+            Supplier<File> spillDirectory,
+            Consumer<Notification> resubmit,
+            Executor unspiller) {
+        this.maxEvents = Math.max(1, maxEvents);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.policy = policy;
+        this.blockTimeout = blockTimeout;
+        this.spillDirectory = spillDirectory;
+        this.resubmit = resubmit;
+        this.unspiller = unspiller;
+    }
+
+    /**
+     * Adds notifications to the backlog, shedding or spilling some if it is full.
+     * @param notifications Notifications being dispatched.
+     * @return The notifications to deliver now, in the same order.
+     */
+    List<Notification> admit(List<Notification> notifications) {
+        List<Notification> admitted = new ArrayList<>(notifications.size());
+        List<Notification> shed = new ArrayList<>();
+        // Notifications do not override equals, this keeps them by identity in the order they came.
+        Map<Notification, SpillFile> spills = new LinkedHashMap<>();
+        if (policy == OverflowPolicy.SPILL) {
+            openSpillDirectory();
+        }
+        lock.lock();
+        try {
+            for (Notification notification : notifications) {
+                if (offer(notification, shed, spills)) {
+                    admitted.add(notification);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!spills.isEmpty()) {
+            spills.forEach((notification, file) -> {
+                if (!spill(notification, file)) {
+                    // Kept in memory instead, it goes after the notifications admitted right away.
+                    admitted.add(notification);
+                }
+            });
+            scheduleUnspill();
+        }
+        for (Notification notification : shed) {
+            NotificationDispatcher.report(
+                    notification,
+                    Level.WARNING,
+                    "Notification backlog is full, dropping %s notification to endpoint with %s",
+                    notification.getPhase(),
+                    notification.getUrlIdString());
+            LOGGER.log(Level.FINE, "Shed notification {0}", notification);
+            NotificationOutbox outbox = NotificationOutbox.get();
+            if (outbox != null) {
+                outbox.acknowledge(notification);
+            }
+        }
+        return admitted;
+    }
+
+    /**
+     * Marks the delivery of a notification as started, it can't be shed anymore.
+     * @return False if the notification was shed in the meantime and must not be delivered.
+     */
+    boolean start(Notification notification) {
+        lock.lock();
+        try {
+            if (evicted.remove(notification)) {
+                return false;
+            }
+            waiting.remove(notification);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a notification from the backlog once delivered or given up, making room for others.
+     */
+    void release(Notification notification) {
+        lock.lock();
+        try {
+            if (held.remove(notification)) {
+                account(notification, -1);
+                notFull.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        scheduleUnspill();
+    }
+
+    /**
+     * Reads back notifications spilled before a restart.
+     */
+    void resumeSpilled() {
+        if (policy != OverflowPolicy.SPILL) {
+            return;
+        }
+        openSpillDirectory();
+        scheduleUnspill();
+    }
+
+    private boolean offer(Notification notification, List<Notification> shed, Map<Notification, SpillFile> spills) {
+        boolean mustDeliver = notification.getPhase() == Phase.FINALIZED;
+        switch (policy) {
+            case SPILL:
+                // Once anything is on disk, later notifications queue up behind it to keep them in order.
+                if ((!spilled.isEmpty() || !hasRoom(notification)) && spillDir != null) {
+                    // Written once the lock is released, it is not read back before.
+                    SpillFile file = new SpillFile(
+                            new File(spillDir, String.format("spill-%019d.bin", spillSequence++)), false);
+                    spilled.add(file);
+                    spills.put(notification, file);
+                    return false;
+                }
+                break;
+            case BLOCK:
+                long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+                try {
+                    while (!hasRoom(notification) && nanos > 0) {
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (!hasRoom(notification) && !mustDeliver) {
+                    shed(notification, shed);
+                    return false;
+                }
+                break;
+            case SAMPLE:
+                double fill = Math.max(
+                        (events + 1) / (double) maxEvents,
+                        (bytes + notification.getPayload().length) / (double) maxBytes);
+                if (!mustDeliver && fill > 0.5 && ThreadLocalRandom.current().nextDouble() < (fill - 0.5) * 2) {
+                    shed(notification, shed);
+                    return false;
+                }
+                break;
+            default:
+                while (!hasRoom(notification)) {
+                    Notification victim = oldestSheddable();
+                    if (victim == null) {
+                        break;
+                    }
+                    waiting.remove(victim);
+                    held.remove(victim);
+                    evicted.add(victim);
+                    account(victim, -1);
+                    shed(victim, shed);
+                }
+                if (!hasRoom(notification) && !mustDeliver) {
+                    shed(notification, shed);
+                    return false;
+                }
+        }
+        hold(notification);
+        return true;
+    }
+
+    private void hold(Notification notification) {
+        held.add(notification);
+        waiting.add(notification);
+        account(notification, 1);
+    }
+
+    private boolean hasRoom(Notification notification) {
+        // A notification larger than the limit still goes through on its own.
+        return events == 0
+                || (events + 1 <= maxEvents && bytes + notification.getPayload().length <= maxBytes);
+    }
+
+    private Notification oldestSheddable() {
+        for (Notification notification : waiting) {
+            if (notification.getPhase() != Phase.FINALIZED) {
+                return notification;
+            }
+        }
+        return null;
+    }
+
+    private void account(Notification notification, int sign) {
+        events += sign;
+        bytes += sign * (long) notification.getPayload().length;
+    }
+
+    private void shed(Notification notification, List<Notification> shed) {
+        shedCounts.merge(notification.getPhase(), 1L, Long::sum);
+        shed.add(notification);
+    }
+
+    /**
+     * Writes a notification to the file reserved for it, called without the lock.
+     * @return False if it could not be written, it is then held in memory instead.
+     */
+    private boolean spill(Notification notification, SpillFile file) {
+        try {
+            byte[] record = NotificationOutbox.encode(notification);
+            Files.write(file.file.toPath(), record);
+            lock.lock();
+            try {
+                file.length = record.length;
+                file.written = true;
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to spill " + notification + " to disk", e);
+            lock.lock();
+            try {
+                spilled.remove(file);
+                hold(notification);
+            } finally {
+                lock.unlock();
+            }
+            deleteQuietly(file.file);
+            return false;
+        }
+        // The spill file takes over from the outbox, the notification is recorded again once read back.
+        NotificationOutbox outbox = NotificationOutbox.get();
+        if (outbox != null) {
+            outbox.acknowledge(notification);
+        }
+        NotificationDispatcher.report(
+                notification,
+                Level.INFO,
+                "Notification backlog is full, writing notification to endpoint with %s to disk",
+                notification.getUrlIdString());
+        return true;
+    }
+
+    /**
+     * Opens the spill directory the first time, picking up what is left over from before a restart. Notifications
+     * are only spilled once it is open, they are held in memory if it can't be.
+     */
+    private synchronized void openSpillDirectory() {
+        if (spillDir != null) {
+            return;
+        }
+        File directory = spillDirectory.get();
+        List<SpillFile> leftovers = new ArrayList<>();
+        long sequence = 0;
+        try {
+            Files.createDirectories(directory.toPath());
+            File[] files = directory.listFiles((dir, name) -> name.startsWith("spill-"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    leftovers.add(new SpillFile(file, true));
+                    String name = file.getName();
+                    try {
+                        long number = Long.parseLong(name.substring("spill-".length(), name.indexOf('.')));
+                        sequence = Math.max(sequence, number + 1);
+                    } catch (RuntimeException e) {
+                        // Not one of ours, it sorts and replays like any other.
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to open the spill directory " + directory, e);
+            return;
+        }
+        lock.lock();
+        try {
+            // Nothing was spilled yet, the leftovers come first.
+            spilled.addAll(leftovers);
+            spillSequence = sequence;
+            spillDir = directory;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the reading back of spilled notifications over to the executor, unless it already has it or there is no
+     * room for the next one.
+     */
+    private void scheduleUnspill() {
+        lock.lock();
+        try {
+            if (unspilling || !canUnspill()) {
+                return;
+            }
+            unspilling = true;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            unspiller.execute(this::unspill);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, they are read back on the next startup.
+            lock.lock();
+            try {
+                unspilling = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean canUnspill() {
+        SpillFile file = spilled.peek();
+        return file != null
+                && file.written
+                && (events == 0 || (events + 1 <= maxEvents && bytes + file.length <= maxBytes));
+    }
+
+    /**
+     * Reads spilled notifications back into the backlog while there is room.
+     */
+    private void unspill() {
+        while (true) {
+            SpillFile file;
+            lock.lock();
+            try {
+                if (!canUnspill()) {
+                    unspilling = false;
+                    return;
+                }
+                file = spilled.poll();
+            } finally {
+                lock.unlock();
+            }
+            Notification notification;
+            try {
+                notification = NotificationOutbox.decode(Files.readAllBytes(file.file.toPath()));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Dropping unreadable spilled notification " + file.file, e);
+                deleteQuietly(file.file);
+                continue;
+            }
+            lock.lock();
+            try {
+                hold(notification);
+            } finally {
+                lock.unlock();
+            }
+            deleteQuietly(file.file);
+            resubmit.accept(notification);
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete " + file, e);
+        }
+    }
+
+    OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return Number of notifications in the backlog.
+     */
+    int getEvents() {
+        lock.lock();
+        try {
+            return events;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Total size of the payloads in the backlog.
+     */
+    long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of notifications waiting on disk.
+     */
+    int getSpilled() {
+        lock.lock();
+        try {
+            return spilled.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of notifications shed so far, by phase.
+     */
+    Map<Phase, Long> getShedCounts() {
+        lock.lock();
+        try {
+            return new EnumMap<>(shedCounts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Notification on disk, in the order it is read back.
+     */
+    private static final class SpillFile {
+        private final File file;
+
+        /**
+         * Size of the file, guarded by the lock like the flag below.
+         */
+        private long length;
+
+        /**
+         * Whether the file is completely written, it is not read back before.
+         */
+        private boolean written;
+
+        SpillFile(File file, boolean written) {
+            this.file = file;
+            this.written = written;
+            this.length = written ? file.length() : 0;
+        }
+    }
+}
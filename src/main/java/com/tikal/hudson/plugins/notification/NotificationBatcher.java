@@ -0,0 +1,167 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+/**
+ * Groups the notifications of {@link Endpoint#isBatched() batched} endpoints into a single message.
+ * <p>
+ * Notifications for the same endpoint, see {@link Notification#getEndpointKey()}, accumulate until the batch holds
+ * {@link Endpoint#getBatchSize()} notifications or {@link Endpoint#getBatchBytes()} bytes, or its first notification
+ * waited {@link Endpoint#getBatchDelay()} milliseconds. The batch is then serialized by
+ * {@link Format#serialize(java.util.List)} and delivered like any other notification, with retries.
+ */
+final class NotificationBatcher {
+
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<>();
+
+    private final HashedWheelTimer timer;
+
+    private final Function<Notification, CompletableFuture<Boolean>> sender;
+
+    /**
+     * @param timer Timer flushing batches once their delay expired.
+     * @param sender Delivers a batch, completing with whether it was delivered.
+     */
+    NotificationBatcher(HashedWheelTimer timer, Function<Notification, CompletableFuture<Boolean>> sender) {
+        this.timer = timer;
+        this.sender = sender;
+    }
+
+    /**
+     * Adds a notification to the current batch of its endpoint.
+     * @return Future completing with true once the batch was delivered, or false once it was given up.
+     */
+    CompletableFuture<Boolean> add(Notification notification) {
+        Endpoint endpoint = notification.getEndpoint();
+        String key = notification.getEndpointKey();
+        Entry entry = new Entry(notification);
+        List<List<Entry>> full = new ArrayList<>(1);
+        batches.compute(key, (k, batch) -> {
+            if (batch == null) {
+                Batch created = new Batch();
+                created.timeout =
+                        timer.schedule(() -> flush(k, created), endpoint.getBatchDelay(), TimeUnit.MILLISECONDS);
+                batch = created;
+            }
+            batch.entries.add(entry);
+            batch.bytes += notification.getPayload().length;
+            if (batch.entries.size() >= endpoint.getBatchSize() || batch.bytes >= endpoint.getBatchBytes()) {
+                batch.timeout.cancel();
+                full.add(batch.entries);
+                return null;
+            }
+            return batch;
+        });
+        for (List<Entry> entries : full) {
+            send(entries);
+        }
+        return entry.result;
+    }
+
+    /**
+     * Sends every pending batch right away.
+     */
+    void flushAll() {
+        for (String key : batches.keySet()) {
+            Batch batch = batches.get(key);
+            if (batch != null) {
+                batch.timeout.cancel();
+                flush(key, batch);
+            }
+        }
+    }
+
+    /**
+     * @return Number of notifications waiting for their batch to be sent.
+     */
+    int getPendingCount() {
+        int count = 0;
+        for (Batch batch : batches.values()) {
+            count += batch.entries.size();
+        }
+        return count;
+    }
+
+    private void flush(String key, Batch batch) {
+        if (batches.remove(key, batch)) {
+            send(batch.entries);
+        }
+    }
+
+    private void send(List<Entry> entries) {
+        Notification first = entries.get(0).notification;
+        List<byte[]> payloads = new ArrayList<>(entries.size());
+        Priority priority = Priority.LOW;
+        for (Entry entry : entries) {
+            payloads.add(entry.notification.getPayload());
+            // The batch goes in the most urgent lane of its notifications.
+            if (entry.notification.getPriority().compareTo(priority) < 0) {
+                priority = entry.notification.getPriority();
+            }
+        }
+        Notification batch = new Notification(
+                first.getRunId(),
+                first.getPhase(),
+                first.getEndpoint(),
+                first.getUrl(),
+                first.getUrlIdString(),
+                first.getEndpoint().getFormat().serialize(payloads),
+                null,
+                first.getCreatedAt(),
+                priority);
+        sender.apply(batch).whenComplete((delivered, error) -> {
+            boolean success = error == null && Boolean.TRUE.equals(delivered);
+            NotificationOutbox outbox = NotificationOutbox.get();
+            for (Entry entry : entries) {
+                if (success && outbox != null) {
+                    outbox.acknowledge(entry.notification);
+                }
+                if (!success) {
+                    entry.notification.setLastError(batch.getLastError());
+                    NotificationDispatcher.report(
+                            entry.notification,
+                            Level.INFO,
+                            "Failed to notify endpoint with %s in a batch of %d notifications",
+                            entry.notification.getUrlIdString(),
+                            entries.size());
+                }
+                entry.result.complete(success);
+            }
+        });
+    }
+
+    private static final class Batch {
+        private final List<Entry> entries = new ArrayList<>();
+        private long bytes;
+        private HashedWheelTimer.Timeout timeout;
+    }
+
+    private static final class Entry {
+        private final Notification notification;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Entry(Notification notification) {
+            this.notification = notification;
+        }
+    }
+}
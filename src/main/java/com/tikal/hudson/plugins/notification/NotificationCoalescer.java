@@ -0,0 +1,83 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the latest notification of every run for each {@link Endpoint#isCoalescing() coalescing} endpoint, so that
+ * pending notifications superseded by a later phase of the same run can be skipped.
+ * <p>
+ * Notifications of the phases listed in {@link Endpoint#getMustDeliver()} are never skipped.
+ */
+final class NotificationCoalescer {
+
+    private final ConcurrentMap<Key, Notification> latest = new ConcurrentHashMap<>();
+
+    /**
+     * Records a notification as the latest one of its run for its endpoint.
+     */
+    void register(Notification notification) {
+        if (notification.getEndpoint().isCoalescing()) {
+            latest.put(new Key(notification), notification);
+        }
+    }
+
+    /**
+     * @return The later notification of the same run superseding this one, or null if it must be delivered.
+     */
+    Notification getSupersedingNotification(Notification notification) {
+        Endpoint endpoint = notification.getEndpoint();
+        if (!endpoint.isCoalescing() || endpoint.isMustDeliver(notification.getPhase())) {
+            return null;
+        }
+        Notification last = latest.get(new Key(notification));
+        return last != null && last != notification ? last : null;
+    }
+
+    /**
+     * Forgets a notification once it is no longer pending.
+     */
+    void remove(Notification notification) {
+        if (notification.getEndpoint().isCoalescing()) {
+            latest.remove(new Key(notification), notification);
+        }
+    }
+
+    private static final class Key {
+        private final String runId;
+        private final String endpoint;
+
+        Key(Notification notification) {
+            this.runId = notification.getRunId();
+            this.endpoint = notification.getEndpointKey();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(runId, other.runId) && Objects.equals(endpoint, other.endpoint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(runId, endpoint);
+        }
+    }
+}
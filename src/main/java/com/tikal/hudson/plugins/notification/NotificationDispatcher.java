@@ -0,0 +1,764 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Delivers {@link Notification}s on a dedicated worker pool, so build threads only pay for enqueuing them.
+ * <p>
+ * Notifications of the same run are delivered in the order they were dispatched, phase by phase, while
+ * notifications of different runs are delivered concurrently.
+ * <p>
+ * The pool size is set with the {@code com.tikal.hudson.plugins.notification.NotificationDispatcher.workers}
+ * system property (default 4). Setting {@code ...NotificationDispatcher.virtualThreads} to {@code true} runs
+ * deliveries on virtual threads instead, up to {@code ...NotificationDispatcher.virtualWorkers} at once (default
+ * 1024), so thousands of slow receivers can be waited on without holding platform threads. This falls back to the
+ * platform pool on JVMs without virtual threads.
+ * <p>
+ * Each endpoint and each destination has a {@link Bulkhead}, so a receiver that hangs can't tie up every worker. At
+ * most {@code ...NotificationDispatcher.maxInFlightPerEndpoint} deliveries (default 64) are in flight per endpoint
+ * and {@code ...NotificationDispatcher.maxInFlightPerDestination} per destination, by default as many as the
+ * {@link HttpTransport} keeps connections to it, or half the workers if HTTP connections are not pooled. Up to
+ * {@code ...NotificationDispatcher.maxQueued} more (default 1000) wait for a slot in each, without holding a
+ * thread. Past that, deliveries are postponed like retries, without using up the retries of their endpoint.
+ * <p>
+ * Setting {@code ...NotificationDispatcher.parallel} to {@code true} delivers the endpoints of a phase concurrently
+ * instead of one after the other. Either way, the next phase of the run waits until all deliveries are done or
+ * {@code ...NotificationDispatcher.phaseDeadline} milliseconds have passed (default 300000, 0 to wait
+ * indefinitely).
+ * <p>
+ * Failed deliveries are retried following the {@link RetryPolicy}, on a {@link HashedWheelTimer} so that waiting
+ * retries don't hold any thread. Deliveries to a receiver whose {@link CircuitBreaker} is open are not attempted but
+ * postponed until the breaker lets trial deliveries through, without using up their retries. Notifications an HTTP
+ * receiver will never accept are not retried, see {@link HttpStatusException}, and a {@code Retry-After} answer opens
+ * the breaker of the receiver for as long as it asked. Notifications that are finally given up go to the
+ * {@link DeadLetterQueue}. Deliveries above the rate limit of their endpoint or receiver
+ * are delayed until their {@link TokenBucket} has a token for them.
+ * Notifications of batched endpoints are grouped by the {@link NotificationBatcher} first. Pending notifications of
+ * coalescing endpoints are skipped once a later phase of the same run is dispatched, see
+ * {@link NotificationCoalescer}.
+ * <p>
+ * Workers, as well as bulkheads with deliveries waiting, take deliveries from a {@link PriorityLaneQueue}, so
+ * notifications of failed builds overtake a backlog of less urgent ones, see {@link Priority}. Workers only start
+ * deliveries: with protocols that send asynchronously, see {@link Protocol#sendAsync}, the worker is free again while
+ * the receiver responds.
+ * <p>
+ * Notifications are held in a {@link NotificationBacklog} until delivered or given up, of at most
+ * {@code ...NotificationDispatcher.maxEvents} notifications (default 10000) and
+ * {@code ...NotificationDispatcher.maxBytes} bytes of payload (default 64 MiB). When it is full,
+ * {@code ...NotificationDispatcher.overflowPolicy} decides what happens to new notifications: {@code DROP_OLDEST}
+ * (default) sheds the oldest ones not being delivered yet, {@code SAMPLE} sheds a growing share of them as the
+ * backlog fills up, {@code SPILL} writes them to {@code JENKINS_HOME/notification-spill} until there is room again,
+ * and {@code BLOCK} makes the build wait up to {@code ...NotificationDispatcher.blockTimeout} milliseconds (default
+ * 5000) before shedding them. {@link Phase#FINALIZED} notifications are never shed.
+ */
+public final class NotificationDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(NotificationDispatcher.class.getName());
+
+    /**
+     * Set while a build dispatches its notifications, the only time their listener is known to be open.
+     */
+    private static final ThreadLocal<Boolean> DISPATCHING = new ThreadLocal<>();
+
+    /**
+     * Termination milestone reached once the dispatcher stopped delivering.
+     */
+    static final String STOPPED = "NotificationDispatcher.stopped";
+
+    static final int WORKERS =
+            Math.max(1, SystemProperties.getInteger(NotificationDispatcher.class.getName() + ".workers", 4));
+
+    static final boolean VIRTUAL_THREADS =
+            SystemProperties.getBoolean(NotificationDispatcher.class.getName() + ".virtualThreads", false);
+
+    static final int VIRTUAL_WORKERS =
+            Math.max(1, SystemProperties.getInteger(NotificationDispatcher.class.getName() + ".virtualWorkers", 1024));
+
+    static final int MAX_IN_FLIGHT_PER_ENDPOINT = Math.max(
+            1, SystemProperties.getInteger(NotificationDispatcher.class.getName() + ".maxInFlightPerEndpoint", 64));
+
+    static final int MAX_QUEUED =
+            Math.max(0, SystemProperties.getInteger(NotificationDispatcher.class.getName() + ".maxQueued", 1000));
+
+    static final boolean PARALLEL =
+            SystemProperties.getBoolean(NotificationDispatcher.class.getName() + ".parallel", false);
+
+    static final long PHASE_DEADLINE =
+            SystemProperties.getLong(NotificationDispatcher.class.getName() + ".phaseDeadline", 300000L);
+
+    static final int MAX_EVENTS =
+            SystemProperties.getInteger(NotificationDispatcher.class.getName() + ".maxEvents", 10000);
+
+    static final long MAX_BYTES =
+            SystemProperties.getLong(NotificationDispatcher.class.getName() + ".maxBytes", 64L * 1024 * 1024);
+
+    static final NotificationBacklog.OverflowPolicy OVERFLOW_POLICY = NotificationBacklog.OverflowPolicy.valueOf(
+            SystemProperties.getString(NotificationDispatcher.class.getName() + ".overflowPolicy", "DROP_OLDEST"));
+
+    static final long BLOCK_TIMEOUT =
+            SystemProperties.getLong(NotificationDispatcher.class.getName() + ".blockTimeout", 5000L);
+
+    /**
+     * Number of endpoints, or of destinations, past which the limits of idle ones are forgotten.
+     */
+    private static final int MAX_ENDPOINTS = 1024;
+
+    private static final NotificationDispatcher INSTANCE = create();
+
+    private final ThreadPoolExecutor executor;
+
+    private final HashedWheelTimer timer =
+            new HashedWheelTimer("NotificationDispatcher timer", 100, TimeUnit.MILLISECONDS, 512);
+
+    private final boolean parallel;
+
+    private final long phaseDeadline;
+
+    private final RetryPolicy retryPolicy;
+
+    private final Function<Notification, CompletableFuture<Void>> transport;
+
+    private final Supplier<DeadLetterQueue> deadLetters;
+
+    private final NotificationBatcher batcher = new NotificationBatcher(timer, this::send);
+
+    private final NotificationCoalescer coalescer = new NotificationCoalescer();
+
+    private final NotificationBacklog backlog;
+
+    private final int maxInFlightPerDestination;
+
+    private final ConcurrentMap<String, Bulkhead> destinationBulkheads = new ConcurrentHashMap<>();
+
+    /**
+     * Limits of every endpoint, by {@link Notification#getEndpointKey()}.
+     */
+    private final ConcurrentMap<String, EndpointLimits> endpointLimits = new ConcurrentHashMap<>();
+
+    /**
+     * Last pending phase of every run with notifications in flight, used to keep phases of a run in order.
+     */
+    private final ConcurrentMap<String, CompletableFuture<Void>> runTails = new ConcurrentHashMap<>();
+
+    /**
+     * @param workers Number of deliveries started at once.
+     * @param threadFactory Factory of the worker threads.
+     * @param parallel Whether the endpoints of a phase are delivered concurrently.
+     * @param phaseDeadline Milliseconds the next phase of a run waits at most for this one, 0 to wait indefinitely.
+     * @param retryPolicy Backoff between delivery attempts.
+     * @param transport Makes one delivery attempt.
+     * @param spillDirectory Directory holding spilled notifications.
+     * @param deadLetters Queue of the notifications given up, may supply null.
+     */
+    NotificationDispatcher(
+            int workers,
+            ThreadFactory threadFactory,
+            boolean parallel,
+            long phaseDeadline,
+            RetryPolicy retryPolicy,
+            Function<Notification, CompletableFuture<Void>> transport,
+            Supplier<File> spillDirectory,
+            Supplier<DeadLetterQueue> deadLetters) {
+        executor =
+                new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS, new PriorityLaneQueue(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        this.parallel = parallel;
+        this.phaseDeadline = phaseDeadline;
+        this.retryPolicy = retryPolicy;
+        this.transport = transport;
+        this.deadLetters = deadLetters;
+        backlog = new NotificationBacklog(
+                MAX_EVENTS,
+                MAX_BYTES,
+                OVERFLOW_POLICY,
+                BLOCK_TIMEOUT,
+                spillDirectory,
+                notification -> enqueue(notification.getRunId(), List.of(notification)),
+                task -> execute(Priority.LOW, task));
+        // Pooled connections are sent on without holding a worker, otherwise each delivery in flight holds one.
+        maxInFlightPerDestination = Math.max(
+                1,
+                SystemProperties.getInteger(
+                        NotificationDispatcher.class.getName() + ".maxInFlightPerDestination",
+                        HttpTransport.POOLED ? HttpTransport.MAX_CONNECTIONS_PER_DESTINATION : workers / 2));
+    }
+
+    private static NotificationDispatcher create() {
+        ThreadFactory virtualThreads = VIRTUAL_THREADS ? VirtualThreads.newFactory("NotificationDispatcher-") : null;
+        if (VIRTUAL_THREADS && virtualThreads == null) {
+            LOGGER.log(Level.WARNING, "Virtual threads are not supported by this JVM, using {0} workers", WORKERS);
+        }
+        return new NotificationDispatcher(
+                virtualThreads != null ? VIRTUAL_WORKERS : WORKERS,
+                virtualThreads != null
+                        ? virtualThreads
+                        : new NamingThreadFactory(new DaemonThreadFactory(), "NotificationDispatcher"),
+                PARALLEL,
+                PHASE_DEADLINE,
+                RetryPolicy.DEFAULT,
+                notification -> notification.getProtocol().sendAsync(notification),
+                () -> new File(Jenkins.get().getRootDir(), "notification-spill"),
+                DeadLetterQueue::get);
+    }
+
+    public static NotificationDispatcher get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues the notifications of one phase of a run and returns immediately.
+     * @param runId Id of the run the notifications belong to.
+     * @param notifications Notifications to deliver, one per endpoint.
+     */
+    public void dispatch(String runId, List<Notification> notifications) {
+        DISPATCHING.set(Boolean.TRUE);
+        try {
+            enqueue(runId, backlog.admit(notifications));
+        } finally {
+            DISPATCHING.remove();
+        }
+    }
+
+    /**
+     * Reports on a notification in the log of its build while the build dispatches it. Deliveries mostly go on from
+     * the dispatcher threads once the build moved on, when its log may already be closed: they are then reported in
+     * the Jenkins log instead.
+     * @param level Level of the report in the Jenkins log.
+     */
+    static void report(Notification notification, Level level, String format, Object... args) {
+        String message = String.format(format, args);
+        if (DISPATCHING.get() != null) {
+            notification.getListener().getLogger().println(message);
+        } else {
+            LOGGER.log(level, notification.getRunId() + ": " + message);
+        }
+    }
+
+    /**
+     * Queues notifications already admitted to the backlog.
+     */
+    private void enqueue(String runId, List<Notification> notifications) {
+        if (notifications.isEmpty()) {
+            return;
+        }
+        for (Notification notification : notifications) {
+            coalescer.register(notification);
+        }
+        NotificationOutbox outbox = NotificationOutbox.get();
+        CompletableFuture<Void> recorded =
+                outbox != null ? outbox.record(notifications) : CompletableFuture.completedFuture(null);
+        // Only the place in line is taken atomically, delivering may run right away and must not hold the map.
+        CompletableFuture<Void> tail = new CompletableFuture<>();
+        CompletableFuture<Void> previous = runTails.put(runId, tail);
+        CompletableFuture<Void> start = previous == null ? recorded : previous.thenCombine(recorded, (a, b) -> null);
+        start.thenCompose(ignored -> withDeadline(runId, deliverPhase(notifications)))
+                .whenComplete((ignored, error) -> {
+                    runTails.remove(runId, tail);
+                    if (error != null) {
+                        LOGGER.log(Level.WARNING, "Failed to deliver notifications of " + runId, error);
+                    }
+                    tail.complete(null);
+                });
+    }
+
+    /**
+     * Delivers the notifications of a phase, one after the other or all at once in parallel mode.
+     */
+    private CompletableFuture<Void> deliverPhase(List<Notification> notifications) {
+        if (parallel) {
+            CompletableFuture<?>[] deliveries = new CompletableFuture<?>[notifications.size()];
+            for (int i = 0; i < deliveries.length; i++) {
+                deliveries[i] = deliver(notifications.get(i));
+            }
+            return CompletableFuture.allOf(deliveries);
+        }
+        CompletableFuture<Void> phase = CompletableFuture.completedFuture(null);
+        for (Notification notification : notifications) {
+            phase = phase.thenCompose(ignored -> deliver(notification)).thenApply(delivered -> null);
+        }
+        return phase;
+    }
+
+    /**
+     * Bounds how long the next phase of a run waits for this one.
+     * @return Future completing when the phase does, or when the phase deadline expires.
+     */
+    private CompletableFuture<Void> withDeadline(String runId, CompletableFuture<Void> phase) {
+        if (phaseDeadline <= 0) {
+            return phase;
+        }
+        return phase.orTimeout(phaseDeadline, TimeUnit.MILLISECONDS).exceptionally(error -> {
+            // Deliveries still running are not interrupted, only the next phase of the run stops waiting for them.
+            LOGGER.log(
+                    Level.WARNING,
+                    "Notifications of {0} still in flight after {1} ms, moving on",
+                    new Object[] {runId, String.valueOf(phaseDeadline)});
+            return null;
+        });
+    }
+
+    /**
+     * Sends a notification, on its own or in a batch if its endpoint is batched.
+     * @param notification Notification to send.
+     * @return Future completing with true once the notification is delivered, or with false once it is given up.
+     */
+    CompletableFuture<Boolean> deliver(Notification notification) {
+        if (!backlog.start(notification)) {
+            // Shed while waiting for the previous phases of its run.
+            coalescer.remove(notification);
+            return CompletableFuture.completedFuture(false);
+        }
+        if (isSuperseded(notification)) {
+            backlog.release(notification);
+            return CompletableFuture.completedFuture(true);
+        }
+        CompletableFuture<Boolean> result =
+                notification.getEndpoint().isBatched() ? batcher.add(notification) : send(notification);
+        return result.whenComplete((delivered, error) -> {
+            coalescer.remove(notification);
+            backlog.release(notification);
+            if (!Boolean.TRUE.equals(delivered)) {
+                deadLetter(notification);
+            }
+        });
+    }
+
+    /**
+     * Hands a notification given up over to the {@link DeadLetterQueue}. Notifications that were never attempted,
+     * e.g. because Jenkins is shutting down, are left to the {@link NotificationOutbox}.
+     */
+    private void deadLetter(Notification notification) {
+        if (notification.getLastError() == null || executor.isShutdown()) {
+            return;
+        }
+        DeadLetterQueue queue = deadLetters.get();
+        if (queue != null) {
+            queue.add(notification);
+        }
+    }
+
+    /**
+     * Sends a notification, retrying with backoff as many times as its endpoint allows. No thread is held while
+     * waiting for the next attempt.
+     * @param notification Notification to send.
+     * @return Future completing with true once the notification is delivered, or with false once it is given up.
+     */
+    private CompletableFuture<Boolean> send(Notification notification) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        schedule(notification, 0, result, 0);
+        return result;
+    }
+
+    /**
+     * Makes one delivery attempt, handling its outcome once the protocol completes it.
+     * @return Future completing once the attempt is over, whatever its outcome.
+     */
+    private CompletableFuture<Void> attempt(
+            Notification notification, int failedAttempts, CompletableFuture<Boolean> result) {
+        // Batches are not coalesced, their notifications were checked before joining them.
+        if (!notification.getEndpoint().isBatched() && isSuperseded(notification)) {
+            result.complete(true);
+            return CompletableFuture.completedFuture(null);
+        }
+        CircuitBreaker breaker =
+                CircuitBreaker.ENABLED ? CircuitBreaker.forDestination(notification.getDestination()) : null;
+        if (breaker != null) {
+            long wait = breaker.tryAcquire();
+            if (wait > 0) {
+                postpone(notification, failedAttempts, result, wait, "is unavailable");
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+        CompletableFuture<Void> sent;
+        try {
+            sent = transport.apply(notification);
+        } catch (RuntimeException e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        return sent.handle((ignored, error) -> {
+            if (error == null) {
+                if (breaker != null) {
+                    breaker.onSuccess();
+                }
+                acknowledge(notification);
+                result.complete(true);
+            } else {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (breaker != null) {
+                    HttpStatusException status =
+                            cause instanceof HttpStatusException ? (HttpStatusException) cause : null;
+                    if (status != null && !status.isRetryable()) {
+                        // The receiver is up, it just won't take this notification.
+                        breaker.onSuccess();
+                    } else if (cause instanceof IllegalArgumentException) {
+                        // The notification can't be sent as configured, the receiver was never contacted.
+                        breaker.onSkipped();
+                    } else {
+                        breaker.onFailure();
+                    }
+                    if (status != null && status.getRetryAfter() > 0) {
+                        breaker.openFor(status.getRetryAfter());
+                    }
+                }
+                retry(notification, failedAttempts, result, cause);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Schedules the next attempt of a failed delivery, or gives it up if it has no retries left.
+     */
+    private void retry(
+            Notification notification, int failedAttempts, CompletableFuture<Boolean> result, Throwable error) {
+        String urlIdString = notification.getUrlIdString();
+        notification.setLastError(error.getClass().getName() + ": " + error.getMessage());
+        if (DISPATCHING.get() != null) {
+            TaskListener listener = notification.getListener();
+            error.printStackTrace(listener.error(String.format("Failed to notify endpoint with %s", urlIdString)));
+        }
+        report(
+                notification,
+                Level.INFO,
+                "Failed to notify endpoint with %s - %s: %s",
+                urlIdString,
+                error.getClass().getName(),
+                error.getMessage());
+        LOGGER.log(Level.FINE, "Failed to deliver " + notification, error);
+
+        int failed = failedAttempts + 1;
+        int triesRemaining = notification.getRetries() - failedAttempts;
+        long age = System.currentTimeMillis() - notification.getCreatedAt();
+        long delay = triesRemaining > 0 ? retryPolicy.nextDelay(failed, age, ThreadLocalRandom.current()) : -1;
+        if (error instanceof IllegalArgumentException) {
+            // A payload the protocol rejects will be rejected again.
+            delay = -1;
+        } else if (error instanceof HttpStatusException && delay >= 0) {
+            HttpStatusException status = (HttpStatusException) error;
+            if (!status.isRetryable()) {
+                delay = -1;
+            } else if (status.getRetryAfter() > delay) {
+                delay = retryPolicy.isExpired(age + status.getRetryAfter()) ? -1 : status.getRetryAfter();
+            }
+        }
+        if (delay < 0) {
+            LOGGER.log(Level.WARNING, "Giving up on notification {0}", notification);
+            result.complete(false);
+            return;
+        }
+        report(
+                notification,
+                Level.FINE,
+                "Reattempting to notify endpoint with %s in %d ms (%d tries remaining)",
+                urlIdString,
+                delay,
+                triesRemaining);
+        schedule(notification, failed, result, delay);
+    }
+
+    /**
+     * Runs the next attempt of a delivery after a delay, or later if rate limits require it.
+     */
+    private void schedule(
+            Notification notification, int failedAttempts, CompletableFuture<Boolean> result, long delay) {
+        long wait = delay;
+        TokenBucket endpointLimiter = limitsOf(notification).getRateLimiter(notification.getEndpoint());
+        if (endpointLimiter != null) {
+            wait = endpointLimiter.reserve(wait);
+        }
+        TokenBucket destinationLimiter = TokenBucket.forDestination(notification.getDestination());
+        if (destinationLimiter != null) {
+            wait = destinationLimiter.reserve(wait);
+        }
+        if (wait > delay) {
+            report(
+                    notification,
+                    Level.FINE,
+                    "Rate limit reached for endpoint with %s, delaying notification by %d ms",
+                    notification.getUrlIdString(),
+                    wait);
+        }
+        Runnable task = () -> admit(notification, failedAttempts, result);
+        if (wait <= 0) {
+            task.run();
+        } else {
+            timer.schedule(task, wait, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Starts an attempt as soon as the bulkheads of its endpoint and destination have a free slot, postponing it if
+     * too many deliveries are already waiting.
+     */
+    private void admit(Notification notification, int failedAttempts, CompletableFuture<Boolean> result) {
+        Priority priority = notification.getPriority();
+        // The delivery waits from now until a worker takes it, bulkhead queues included.
+        long admittedAt = System.nanoTime();
+        Bulkhead endpointBulkhead = limitsOf(notification).bulkhead;
+        Bulkhead destinationBulkhead = bulkheadOf(notification.getDestination());
+        Runnable release = () -> {
+            destinationBulkhead.release();
+            endpointBulkhead.release();
+        };
+        Runnable start = () -> {
+            Runnable task = () -> {
+                // The slots are held until the attempt completes, not just while this worker starts it.
+                boolean started = false;
+                try {
+                    attempt(notification, failedAttempts, result).whenComplete((ignored, error) -> release.run());
+                    started = true;
+                } finally {
+                    if (!started) {
+                        release.run();
+                    }
+                }
+            };
+            if (!submit(new PriorityLaneQueue.Task(priority, task, admittedAt), result)) {
+                release.run();
+            }
+        };
+        Runnable enterDestination = () -> {
+            if (!destinationBulkhead.enter(new PriorityLaneQueue.Task(priority, start, admittedAt))) {
+                endpointBulkhead.release();
+                postpone(notification, failedAttempts, result, retryPolicy.getInitialDelay(), "is overloaded");
+            }
+        };
+        if (!endpointBulkhead.enter(new PriorityLaneQueue.Task(priority, enterDestination, admittedAt))) {
+            postpone(notification, failedAttempts, result, retryPolicy.getInitialDelay(), "is overloaded");
+        }
+    }
+
+    /**
+     * Tries a delivery again later without using up a retry, unless the notification would be too old by then.
+     */
+    private void postpone(
+            Notification notification,
+            int failedAttempts,
+            CompletableFuture<Boolean> result,
+            long wait,
+            String reason) {
+        // Spread the postponed deliveries a little, so they don't all come back on the same tick.
+        long delay = wait + ThreadLocalRandom.current().nextLong(Math.min(wait, 1000) + 1);
+        long age = System.currentTimeMillis() - notification.getCreatedAt();
+        if (retryPolicy.isExpired(age + delay)) {
+            notification.setLastError("Receiver " + reason);
+            LOGGER.log(
+                    Level.WARNING,
+                    "Giving up on notification {0}, its receiver {1}",
+                    new Object[] {notification, reason});
+            result.complete(false);
+            return;
+        }
+        report(
+                notification,
+                Level.FINE,
+                "Endpoint with %s %s, postponing notification by %d ms",
+                notification.getUrlIdString(),
+                reason,
+                delay);
+        schedule(notification, failedAttempts, result, delay);
+    }
+
+    /**
+     * Checks whether a later phase of the same run replaces a notification, acknowledging it if so.
+     */
+    private boolean isSuperseded(Notification notification) {
+        Notification later = coalescer.getSupersedingNotification(notification);
+        if (later == null) {
+            return false;
+        }
+        report(
+                notification,
+                Level.FINE,
+                "Skipping %s notification to endpoint with %s, superseded by %s",
+                notification.getPhase(),
+                notification.getUrlIdString(),
+                later.getPhase());
+        acknowledge(notification);
+        return true;
+    }
+
+    /**
+     * @return The limits shared by the notifications of the same endpoint, whichever {@link Endpoint} instance they
+     * were created from.
+     */
+    private EndpointLimits limitsOf(Notification notification) {
+        String key = notification.getEndpointKey();
+        EndpointLimits limits = endpointLimits.get(key);
+        if (limits == null) {
+            if (endpointLimits.size() >= MAX_ENDPOINTS) {
+                endpointLimits.values().removeIf(EndpointLimits::isIdle);
+            }
+            limits = endpointLimits.computeIfAbsent(key, k -> new EndpointLimits());
+        }
+        return limits;
+    }
+
+    /**
+     * @return The bulkhead shared by the deliveries to a destination.
+     */
+    private Bulkhead bulkheadOf(String destination) {
+        Bulkhead bulkhead = destinationBulkheads.get(destination);
+        if (bulkhead == null) {
+            if (destinationBulkheads.size() >= MAX_ENDPOINTS) {
+                destinationBulkheads.values().removeIf(Bulkhead::isIdle);
+            }
+            bulkhead = destinationBulkheads.computeIfAbsent(
+                    destination, d -> new Bulkhead(maxInFlightPerDestination, MAX_QUEUED));
+        }
+        return bulkhead;
+    }
+
+    private static void acknowledge(Notification notification) {
+        NotificationOutbox outbox = NotificationOutbox.get();
+        if (outbox != null) {
+            outbox.acknowledge(notification);
+        }
+    }
+
+    private boolean submit(PriorityLaneQueue.Task task, CompletableFuture<Boolean> result) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the outbox will take care of it on the next startup.
+            result.complete(false);
+            return false;
+        }
+    }
+
+    /**
+     * Runs work related to deliveries on the workers, e.g. so that the timer or selector thread only hands it over.
+     * @param priority Lane of the work, see {@link PriorityLaneQueue}.
+     * @throws RejectedExecutionException If the dispatcher is shutting down.
+     */
+    void execute(Priority priority, Runnable task) {
+        executor.execute(new PriorityLaneQueue.Task(priority, task));
+    }
+
+    /**
+     * @return Timer shared by the delayed work of the dispatcher.
+     */
+    HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * @return Number of notification phases waiting for a worker.
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return Statistics of the priority lanes of the work queue.
+     */
+    Map<Priority, PriorityLaneQueue.LaneStats> getLaneStats() {
+        return ((PriorityLaneQueue) executor.getQueue()).getStats();
+    }
+
+    /**
+     * @return Number of notifications waiting for their batch to fill.
+     */
+    public int getBatchedCount() {
+        return batcher.getPendingCount();
+    }
+
+    /**
+     * @return Backlog of the notifications not delivered yet.
+     */
+    NotificationBacklog getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Delivers the notifications spilled to disk before the previous shutdown.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resumeSpilled() {
+        INSTANCE.backlog.resumeSpilled();
+    }
+
+    @Terminator(attains = STOPPED)
+    public static void shutdown() throws InterruptedException {
+        INSTANCE.stop();
+        TcpSelector.shutdown();
+    }
+
+    /**
+     * Sends the pending batches and stops delivering.
+     */
+    void stop() throws InterruptedException {
+        batcher.flushAll();
+        timer.stop();
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            LOGGER.log(Level.WARNING, "Pending notifications were not delivered before shutdown");
+        }
+    }
+
+    /**
+     * Rate limit and bulkhead of an endpoint.
+     */
+    private static final class EndpointLimits {
+        private final Bulkhead bulkhead = new Bulkhead(MAX_IN_FLIGHT_PER_ENDPOINT, MAX_QUEUED);
+        private TokenBucket rateLimiter;
+        private int rateLimit;
+        private int burst;
+
+        /**
+         * @return Bucket enforcing the rate limit of the endpoint, or null if it is unlimited. A new bucket is made
+         * once the endpoint is configured with another rate.
+         */
+        synchronized TokenBucket getRateLimiter(Endpoint endpoint) {
+            int rateLimit = endpoint.getRateLimit();
+            int burst = endpoint.getBurst();
+            if (rateLimit != this.rateLimit || burst != this.burst) {
+                this.rateLimit = rateLimit;
+                this.burst = burst;
+                rateLimiter = TokenBucket.of(rateLimit, burst);
+            }
+            return rateLimiter;
+        }
+
+        synchronized boolean isIdle() {
+            return bulkhead.isIdle() && (rateLimiter == null || rateLimiter.isFull());
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.util.Secret;
+import hudson.util.XStream2;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Durable record of the notifications being delivered, kept in {@code JENKINS_HOME/notification-outbox}.
+ * <p>
+ * Notifications are written to a {@link WriteAheadLog} before delivery and acknowledged once their endpoint accepted
+ * them. Whatever was not acknowledged when Jenkins stopped is delivered again on the next startup. Notifications that
+ * ran out of retries are handed over to the {@link DeadLetterQueue} instead, if enabled.
+ * <p>
+ * Disabled by default, enable it with the {@code com.tikal.hudson.plugins.notification.NotificationOutbox.enabled}
+ * system property. {@code ...NotificationOutbox.segmentSize} sets the size of the log segments in bytes (default
+ * 16 MB).
+ */
+public final class NotificationOutbox {
+
+    private static final Logger LOGGER = Logger.getLogger(NotificationOutbox.class.getName());
+
+    static final boolean ENABLED =
+            SystemProperties.getBoolean(NotificationOutbox.class.getName() + ".enabled", false);
+
+    static final long SEGMENT_SIZE =
+            SystemProperties.getLong(NotificationOutbox.class.getName() + ".segmentSize", 16L * 1024 * 1024);
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    private static volatile NotificationOutbox instance;
+
+    private static boolean initialized;
+
+    private final WriteAheadLog log;
+
+    NotificationOutbox(File directory) throws IOException {
+        this.log = new WriteAheadLog(directory, SEGMENT_SIZE);
+    }
+
+    /**
+     * @return The outbox, or null if it is disabled or could not be opened.
+     */
+    @CheckForNull
+    public static NotificationOutbox get() {
+        NotificationOutbox outbox = instance;
+        if (outbox != null || !ENABLED) {
+            return outbox;
+        }
+        synchronized (NotificationOutbox.class) {
+            if (!initialized) {
+                initialized = true;
+                File directory = new File(Jenkins.get().getRootDir(), "notification-outbox");
+                try {
+                    instance = new NotificationOutbox(directory);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to open " + directory + ", notifications won't be recorded", e);
+                }
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Writes notifications to disk.
+     * @param notifications Notifications about to be delivered. Those already recorded are skipped.
+     * @return Future completing once the notifications are durable. It never completes exceptionally, a
+     * notification that could not be recorded is still delivered.
+     */
+    CompletableFuture<Void> record(List<Notification> notifications) {
+        List<CompletableFuture<Void>> appends = new ArrayList<>();
+        for (Notification notification : notifications) {
+            if (notification.getOutboxId() >= 0) {
+                continue;
+            }
+            try {
+                appends.add(log.append(encode(notification)).thenAccept(notification::setOutboxId));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to record " + notification, e);
+            }
+        }
+        return CompletableFuture.allOf(appends.toArray(new CompletableFuture<?>[0]))
+                .exceptionally(error -> {
+                    LOGGER.log(Level.WARNING, "Failed to record notifications", error);
+                    return null;
+                });
+    }
+
+    /**
+     * Marks a notification as delivered, so it is not replayed anymore.
+     * @param notification Delivered notification.
+     */
+    void acknowledge(Notification notification) {
+        long id = notification.getOutboxId();
+        if (id >= 0) {
+            log.ack(id);
+        }
+    }
+
+    /**
+     * Delivers the notifications left over from the previous run of Jenkins.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void replay() {
+        NotificationOutbox outbox = get();
+        if (outbox == null) {
+            return;
+        }
+        Map<Long, byte[]> pending = outbox.log.recover();
+        if (!pending.isEmpty()) {
+            LOGGER.log(Level.INFO, "Replaying {0} undelivered notifications", pending.size());
+        }
+        for (Map.Entry<Long, byte[]> entry : pending.entrySet()) {
+            Notification notification;
+            try {
+                notification = decode(entry.getValue());
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Dropping unreadable notification " + entry.getKey(), e);
+                outbox.log.ack(entry.getKey());
+                continue;
+            }
+            notification.setOutboxId(entry.getKey());
+            NotificationDispatcher.get().dispatch(notification.getRunId(), List.of(notification));
+        }
+    }
+
+    @Terminator(requires = NotificationDispatcher.STOPPED)
+    public static void close() throws IOException {
+        NotificationOutbox outbox = instance;
+        if (outbox != null) {
+            outbox.log.close();
+        }
+    }
+
+    static byte[] encode(Notification notification) throws IOException {
+        byte[] payload = notification.getPayload();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 1024);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT_VERSION);
+            out.writeUTF(notification.getRunId());
+            out.writeUTF(notification.getPhase().name());
+            writeString(out, XSTREAM.toXML(notification.getEndpoint()));
+            // The URL may come from a secret credential.
+            writeString(out, Secret.fromString(notification.getUrl()).getEncryptedValue());
+            writeString(out, notification.getUrlIdString());
+            out.writeLong(notification.getCreatedAt());
+            out.writeUTF(notification.getPriority().name());
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Notification decode(byte[] record) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            int version = in.readByte();
+            if (version < 1 || version > FORMAT_VERSION) {
+                throw new IOException("Unsupported record version " + version);
+            }
+            String runId = in.readUTF();
+            Phase phase = Phase.valueOf(in.readUTF());
+            Endpoint endpoint = (Endpoint) XSTREAM.fromXML(readString(in));
+            String url = Secret.toString(Secret.decrypt(readString(in)));
+            String urlIdString = readString(in);
+            long createdAt = in.readLong();
+            // Version 1 did not record the lane, it is chosen from the phase again.
+            Priority priority = version >= 2 ? Priority.valueOf(in.readUTF()) : Priority.of(phase, null, endpoint);
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            return new Notification(runId, phase, endpoint, url, urlIdString, payload, null, createdAt, priority);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -35,7 +35,10 @@ import hudson.tasks.test.AbstractTestResultAction;
 import hudson.tasks.test.TestResult;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -130,7 +133,7 @@ public enum Phase {
     }
 
     private JobState buildJobState(
-            Job job, Run run, TaskListener listener, long timestamp, Endpoint target, Phase phase)
+            Job job, Run run, TaskListener listener, EnvVars environment, long timestamp, Endpoint target, Phase phase)
             throws IOException, InterruptedException {
         Jenkins jenkins = Jenkins.getInstanceOrNull();
         assert jenkins != null;
@@ -141,7 +144,6 @@ public enum Phase {
         ScmState scmState = new ScmState();
         Result result = run.getResult();
         ParametersAction paramsAction = run.getAction(ParametersAction.class);
-        EnvVars environment = run.getEnvironment(listener);
         StringBuilder log = this.getLog(run, target);
 
         jobState.setName(job.getName());
@@ -311,9 +313,15 @@ public enum Phase {
         }
 
         try {
-            // The full log
+            // The full log, read straight into the builder rather than into a string first
             if (loglines == -1) {
-                log.append(run.getLog());
+                try (Reader reader = run.getLogReader()) {
+                    char[] buffer = new char[8192];
+                    int read;
+                    while ((read = reader.read(buffer)) >= 0) {
+                        log.append(buffer, 0, read);
+                    }
+                }
             } else {
                 List<String> logEntries = run.getLog(loglines);
                 for (String entry : logEntries) {
@@ -343,6 +351,12 @@ public enum Phase {
         }
 
         Result previousCompletedRunResults = findLastBuildThatFinished(run);
+        List<Notification> notifications = new ArrayList<>();
+        EnvVars environment = null;
+        // Endpoints only differ in what they send by their format, log lines and build notes: the state of the run is
+        // gathered once per log lines and build notes, and serialized once per format on top of that.
+        Map<List<Object>, JobState> jobStates = new HashMap<>();
+        Map<List<Object>, byte[]> payloads = new HashMap<>();
 
         for (Endpoint target : property.getEndpoints()) {
             if ((!manual && !isRun(target, run.getResult(), previousCompletedRunResults))
@@ -358,74 +372,73 @@ public enum Phase {
                 target.setLoglines(logLines);
             }
 
-            int triesRemaining = target.getRetries();
-            boolean failed = false;
-            do {
-                // Represents a string that will be put into the log
-                // if there is an error contacting the target.
-                String urlIdString = "url 'unknown'";
-                try {
-                    EnvVars environment = run.getEnvironment(listener);
-                    // Expand out the URL from environment + url.
-                    String expandedUrl;
-                    UrlInfo urlInfo = target.getUrlInfo();
-                    switch (urlInfo.getUrlType()) {
-                        case PUBLIC:
-                            expandedUrl = environment.expand(urlInfo.getUrlOrId());
-                            urlIdString = String.format("url '%s'", expandedUrl);
-                            break;
-                        case SECRET:
-                            String urlSecretId = urlInfo.getUrlOrId();
-                            String actualUrl = Utils.getSecretUrl(urlSecretId, job.getParent());
-                            expandedUrl = environment.expand(actualUrl);
-                            urlIdString = String.format("credentials id '%s'", urlSecretId);
-                            break;
-                        default:
-                            throw new UnsupportedOperationException("Unknown URL type");
-                    }
-
-                    if (!isURLValid(urlIdString, expandedUrl, listener.getLogger())) {
-                        continue;
-                    }
+            // Represents a string that will be put into the log
+            // if there is an error contacting the target.
+            String urlIdString = "url 'unknown'";
+            try {
+                if (environment == null) {
+                    environment = run.getEnvironment(listener);
+                }
+                // Expand out the URL from environment + url.
+                String expandedUrl;
+                UrlInfo urlInfo = target.getUrlInfo();
+                switch (urlInfo.getUrlType()) {
+                    case PUBLIC:
+                        expandedUrl = environment.expand(urlInfo.getUrlOrId());
+                        urlIdString = String.format("url '%s'", expandedUrl);
+                        break;
+                    case SECRET:
+                        String urlSecretId = urlInfo.getUrlOrId();
+                        String actualUrl = Utils.getSecretUrl(urlSecretId, job.getParent());
+                        expandedUrl = environment.expand(actualUrl);
+                        urlIdString = String.format("credentials id '%s'", urlSecretId);
+                        break;
+                    default:
+                        throw new UnsupportedOperationException("Unknown URL type");
+                }
 
-                    final String branch = target.getBranch();
-                    if (!manual
-                            && environment.containsKey("BRANCH_NAME")
-                            && !environment.get("BRANCH_NAME").matches(branch)) {
-                        listener.getLogger()
-                                .printf(
-                                        "Environment variable %s with value %s does not match configured branch filter %s%n",
-                                        "BRANCH_NAME", environment.get("BRANCH_NAME"), branch);
-                        continue;
-                    } else if (!manual && !environment.containsKey("BRANCH_NAME") && !".*".equals(branch)) {
-                        listener.getLogger().printf("Environment does not contain %s variable%n", "BRANCH_NAME");
-                        continue;
-                    }
+                if (!isURLValid(urlIdString, expandedUrl, listener.getLogger())) {
+                    continue;
+                }
 
-                    listener.getLogger().printf("Notifying endpoint with %s%n", urlIdString);
-                    JobState jobState = buildJobState(job, run, listener, timestamp, target, phase);
-                    target.getProtocol()
-                            .send(
-                                    expandedUrl,
-                                    target.getFormat().serialize(jobState),
-                                    target.getTimeout(),
-                                    target.isJson());
-                } catch (Throwable error) {
-                    failed = true;
-                    error.printStackTrace(
-                            listener.error(String.format("Failed to notify endpoint with %s", urlIdString)));
+                final String branch = target.getBranch();
+                if (!manual
+                        && environment.containsKey("BRANCH_NAME")
+                        && !environment.get("BRANCH_NAME").matches(branch)) {
                     listener.getLogger()
                             .printf(
-                                    "Failed to notify endpoint with %s - %s: %s%n",
-                                    urlIdString, error.getClass().getName(), error.getMessage());
-                    if (triesRemaining > 0) {
-                        listener.getLogger()
-                                .printf(
-                                        "Reattempting to notify endpoint with %s (%d tries remaining)%n",
-                                        urlIdString, triesRemaining);
+                                    "Environment variable %s with value %s does not match configured branch filter %s%n",
+                                    "BRANCH_NAME", environment.get("BRANCH_NAME"), branch);
+                    continue;
+                } else if (!manual && !environment.containsKey("BRANCH_NAME") && !".*".equals(branch)) {
+                    listener.getLogger().printf("Environment does not contain %s variable%n", "BRANCH_NAME");
+                    continue;
+                }
+
+                listener.getLogger().printf("Notifying endpoint with %s%n", urlIdString);
+                List<Object> state = Arrays.asList(target.getLoglines(), target.getBuildNotes());
+                List<Object> payload = Arrays.asList(target.getFormat(), target.getLoglines(), target.getBuildNotes());
+                byte[] data = payloads.get(payload);
+                if (data == null) {
+                    JobState jobState = jobStates.get(state);
+                    if (jobState == null) {
+                        jobState = buildJobState(job, run, listener, environment, timestamp, target, phase);
+                        jobStates.put(state, jobState);
                     }
+                    data = target.getFormat().serialize(jobState);
+                    payloads.put(payload, data);
                 }
-            } while (failed && --triesRemaining >= 0);
+                notifications.add(new Notification(run, phase, target, expandedUrl, urlIdString, data, listener));
+            } catch (Throwable error) {
+                error.printStackTrace(listener.error(String.format("Failed to notify endpoint with %s", urlIdString)));
+                listener.getLogger()
+                        .printf(
+                                "Failed to notify endpoint with %s - %s: %s%n",
+                                urlIdString, error.getClass().getName(), error.getMessage());
+            }
         }
+
+        // Delivery (and retries) happen on the dispatcher threads, so slow endpoints don't hold up the build.
+        NotificationDispatcher.get().dispatch(Notification.runIdOf(run), notifications);
     }
 }
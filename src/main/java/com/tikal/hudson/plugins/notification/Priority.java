@@ -0,0 +1,71 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import hudson.model.Result;
+import jenkins.util.SystemProperties;
+
+/**
+ * Priority lanes of the {@link NotificationDispatcher}.
+ * <p>
+ * When deliveries are backed up, workers take {@code weight} deliveries of a lane for every delivery of a lane of
+ * weight 1, so urgent notifications overtake the backlog while the other lanes still progress. The weights are set
+ * with the {@code com.tikal.hudson.plugins.notification.Priority.<LANE>.weight} system properties.
+ */
+public enum Priority {
+    /**
+     * Notifications about failed builds, those people are waiting for.
+     */
+    HIGH(8),
+    NORMAL(3),
+    /**
+     * Notifications about builds being queued or started.
+     */
+    LOW(1);
+
+    private final int weight;
+
+    Priority(int weight) {
+        this.weight = Math.max(
+                1, SystemProperties.getInteger(Priority.class.getName() + "." + name() + ".weight", weight));
+    }
+
+    int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Chooses the lane of a notification.
+     * @param phase Phase being notified.
+     * @param result Result of the run so far, may be null.
+     * @param endpoint Endpoint notified, its priority overrides the automatic one if set.
+     * @return The lane of the notification.
+     */
+    static Priority of(Phase phase, Result result, Endpoint endpoint) {
+        Priority configured = endpoint.getPriority();
+        if (configured != null) {
+            return configured;
+        }
+        switch (phase) {
+            case QUEUED:
+            case STARTED:
+                return LOW;
+            case COMPLETED:
+            case FINALIZED:
+                return result != null && result.isWorseThan(Result.SUCCESS) ? HIGH : NORMAL;
+            default:
+                return NORMAL;
+        }
+    }
+}
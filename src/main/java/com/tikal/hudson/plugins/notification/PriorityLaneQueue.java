@@ -0,0 +1,377 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue of the {@link NotificationDispatcher} with one lane per {@link Priority}.
+ * <p>
+ * Lanes are served by weighted round robin: within a round, every lane gets as many tasks taken as its weight, higher
+ * priorities first, and a new round starts once the non-empty lanes used up their share. Tasks that are not
+ * {@link Task}s go to the {@link Priority#NORMAL} lane.
+ * <p>
+ * A {@link Task} waits from the time it was created, which may be before it was queued here: deliveries are created
+ * when admitted and may first wait in a {@link Bulkhead}, so their wait runs until a worker takes them and sends.
+ */
+final class PriorityLaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Lane[] lanes;
+
+    private int count;
+
+    PriorityLaneQueue() {
+        Priority[] priorities = Priority.values();
+        lanes = new Lane[priorities.length];
+        for (int i = 0; i < priorities.length; i++) {
+            lanes[i] = new Lane(priorities[i]);
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        Entry entry = new Entry(task, task instanceof Task ? ((Task) task).createdAt : System.nanoTime());
+        lock.lock();
+        try {
+            Lane lane = lanes[priorityOf(task).ordinal()];
+            lane.entries.add(entry);
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public void put(Runnable task) {
+        offer(task);
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return count > 0 ? dequeue() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                Entry entry = lane.entries.peek();
+                if (entry != null) {
+                    return entry.task;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object task) {
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                for (Iterator<Entry> it = lane.entries.iterator(); it.hasNext(); ) {
+                    if (it.next().task.equals(task)) {
+                        it.remove();
+                        count--;
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (count > 0 && drained < maxElements) {
+                c.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of the queue, tasks can be removed through it.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> snapshot = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                for (Entry entry : lane.entries) {
+                    snapshot.add(entry.task);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        Iterator<Runnable> it = snapshot.iterator();
+        return new Iterator<>() {
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                last = it.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                PriorityLaneQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    /**
+     * @return Current statistics of every lane.
+     */
+    Map<Priority, LaneStats> getStats() {
+        Map<Priority, LaneStats> stats = new EnumMap<>(Priority.class);
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                stats.put(lane.priority, new LaneStats(lane));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return stats;
+    }
+
+    private Runnable dequeue() {
+        // Two passes at most: if no lane with tasks has credits left, the second pass starts a new round.
+        for (int pass = 0; pass < 2; pass++) {
+            for (Lane lane : lanes) {
+                if (lane.credits > 0 && !lane.entries.isEmpty()) {
+                    lane.credits--;
+                    Entry entry = lane.entries.poll();
+                    long wait = System.nanoTime() - entry.enqueuedAt;
+                    lane.dequeued++;
+                    lane.totalWaitNanos += wait;
+                    lane.maxWaitNanos = Math.max(lane.maxWaitNanos, wait);
+                    count--;
+                    return entry.task;
+                }
+            }
+            for (Lane lane : lanes) {
+                lane.credits = lane.priority.getWeight();
+            }
+        }
+        throw new NoSuchElementException();
+    }
+
+    private static Priority priorityOf(Runnable task) {
+        return task instanceof Task ? ((Task) task).priority : Priority.NORMAL;
+    }
+
+    /**
+     * A task going to a specific lane.
+     */
+    static final class Task implements Runnable {
+        private final Priority priority;
+        private final Runnable delegate;
+        private final long createdAt;
+
+        Task(Priority priority, Runnable delegate) {
+            this(priority, delegate, System.nanoTime());
+        }
+
+        /**
+         * @param createdAt {@link System#nanoTime()} from which the task is waiting.
+         */
+        Task(Priority priority, Runnable delegate, long createdAt) {
+            this.priority = priority;
+            this.delegate = delegate;
+            this.createdAt = createdAt;
+        }
+
+        Priority getPriority() {
+            return priority;
+        }
+
+        @Override
+        public void run() {
+            delegate.run();
+        }
+    }
+
+    /**
+     * Statistics of a lane, at the time they were taken.
+     */
+    public static final class LaneStats {
+        private final int depth;
+        private final long completed;
+        private final long averageWait;
+        private final long maxWait;
+
+        private LaneStats(Lane lane) {
+            this.depth = lane.entries.size();
+            this.completed = lane.dequeued;
+            this.averageWait =
+                    lane.dequeued > 0 ? TimeUnit.NANOSECONDS.toMillis(lane.totalWaitNanos / lane.dequeued) : 0;
+            this.maxWait = TimeUnit.NANOSECONDS.toMillis(lane.maxWaitNanos);
+        }
+
+        /**
+         * @return Number of tasks waiting in the lane.
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return Number of tasks taken from the lane so far.
+         */
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return Average time tasks waited until taken from the lane, in milliseconds.
+         */
+        public long getAverageWait() {
+            return averageWait;
+        }
+
+        /**
+         * @return Longest time a task waited until taken from the lane, in milliseconds.
+         */
+        public long getMaxWait() {
+            return maxWait;
+        }
+    }
+
+    private static final class Lane {
+        private final Priority priority;
+        private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        private int credits;
+        private long dequeued;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        Lane(Priority priority) {
+            this.priority = priority;
+            this.credits = priority.getWeight();
+        }
+    }
+
+    private static final class Entry {
+        private final Runnable task;
+        private final long enqueuedAt;
+
+        Entry(Runnable task, long enqueuedAt) {
+            this.task = task;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
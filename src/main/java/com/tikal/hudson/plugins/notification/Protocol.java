@@ -14,50 +14,92 @@
 package com.tikal.hudson.plugins.notification;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.HttpURLConnection;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.Socket;
-import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
 import jenkins.model.Jenkins;
 
 public enum Protocol {
     UDP {
         @Override
         protected void send(String url, byte[] data, int timeout, boolean isJson) throws IOException {
-            HostnamePort hostnamePort = HostnamePort.parseUrl(url);
-            DatagramSocket socket = new DatagramSocket();
-            DatagramPacket packet = new DatagramPacket(
-                    data, data.length, InetAddress.getByName(hostnamePort.hostname), hostnamePort.port);
-            socket.send(packet);
+            UdpTransport.send(url, data);
         }
     },
     TCP {
         @Override
         protected void send(String url, byte[] data, int timeout, boolean isJson) throws IOException {
             HostnamePort hostnamePort = HostnamePort.parseUrl(url);
-            SocketAddress endpoint =
-                    new InetSocketAddress(InetAddress.getByName(hostnamePort.hostname), hostnamePort.port);
-            Socket socket = new Socket();
-            socket.setSoTimeout(timeout);
-            socket.connect(endpoint, timeout);
-            OutputStream output = socket.getOutputStream();
-            output.write(data);
-            output.flush();
-            output.close();
+            try (Socket socket = TcpTransport.connect(hostnamePort.hostname, hostnamePort.port, timeout)) {
+                socket.setSoTimeout(timeout);
+                OutputStream output = socket.getOutputStream();
+                output.write(data);
+                output.flush();
+            }
+        }
+
+        /**
+         * Without framing, each notification gets a connection of its own, through the {@link TcpSelector} if it is
+         * enabled. If the endpoint compresses payloads, every payload is then sent as a
+         * {@link Framing#LENGTH_PREFIXED} frame, including those below the compression threshold, so that the
+         * receiver reads all of them the same way. Otherwise payloads are sent as is.
+         */
+        @Override
+        protected CompletableFuture<Void> sendAsync(Notification notification) {
+            String url = notification.getUrl();
+            int timeout = notification.getTimeout();
+            Framing framing = notification.getFraming();
+            Format format = notification.getFormat();
+            if (framing != null && !framing.accepts(format)) {
+                return CompletableFuture.failedFuture(
+                        new IllegalArgumentException(format + " payloads can't be sent newline delimited, only JSON"));
+            }
+            if (framing != null) {
+                return complete(() -> TcpTransport.send(
+                        url,
+                        notification.getPayload(),
+                        timeout,
+                        framing,
+                        notification.getCompression(),
+                        notification.isAcknowledged()));
+            }
+            Compression configured = notification.getEndpoint().getCompression();
+            byte[] data;
+            try {
+                data = configured == null || configured == Compression.NONE
+                        ? notification.getPayload()
+                        : Framing.LENGTH_PREFIXED.frame(notification.getPayload(), notification.getCompression());
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            if (TcpSelector.ENABLED) {
+                return TcpSelector.get().send(url, data, timeout);
+            }
+            return complete(() -> send(url, data, timeout, notification.isJson()));
         }
     },
     HTTP {
         @Override
         protected void send(String url, byte[] data, int timeout, boolean isJson) throws IOException {
+            send(url, data, timeout, (isJson ? Format.JSON : Format.XML).getContentType(), HttpTransport.MAX_REDIRECTS);
+        }
+
+        private void send(String url, byte[] data, int timeout, String contentType, int redirectsLeft)
+                throws IOException {
+            if (HttpTransport.POOLED) {
+                HttpTransport.send(url, data, timeout, contentType);
+                return;
+            }
 
             URL targetUrl = new URL(url);
             if (!targetUrl.getProtocol().startsWith("http")) {
@@ -85,8 +127,7 @@ public enum Protocol {
             }
 
             HttpURLConnection connection = (HttpURLConnection) targetUrl.openConnection(proxy);
-            connection.setRequestProperty(
-                    "Content-Type", String.format("application/%s;charset=UTF-8", isJson ? "json" : "xml"));
+            connection.setRequestProperty("Content-Type", contentType);
             String userInfo = targetUrl.getUserInfo();
             if (null != userInfo) {
                 // TODO see if UTF-8 can be used instead of platform default encoding
@@ -101,26 +142,67 @@ public enum Protocol {
             connection.setConnectTimeout(timeout);
             connection.setReadTimeout(timeout);
             connection.connect();
-            try {
-                try (OutputStream output = connection.getOutputStream()) {
-                    output.write(data);
-                    output.flush();
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(data);
+                output.flush();
+            } catch (IOException | RuntimeException e) {
+                connection.disconnect();
+                throw e;
+            }
+            int status = connection.getResponseCode();
+            // Follow an HTTP Temporary Redirect if we get one,
+            //
+            // NB: Normally using the HttpURLConnection interface, we'd call
+            // connection.setInstanceFollowRedirects(true) to enable 307 redirect following but
+            // since we have the connection in streaming mode this does not work and we instead
+            // re-direct manually.
+            if (307 == status) {
+                String location = connection.getHeaderField("Location");
+                connection.disconnect();
+                if (redirectsLeft <= 0) {
+                    throw new IOException("Too many redirects notifying " + url);
                 }
-            } finally {
-                // Follow an HTTP Temporary Redirect if we get one,
-                //
-                // NB: Normally using the HttpURLConnection interface, we'd call
-                // connection.setInstanceFollowRedirects(true) to enable 307 redirect following but
-                // since we have the connection in streaming mode this does not work and we instead
-                // re-direct manually.
-                if (307 == connection.getResponseCode()) {
-                    String location = connection.getHeaderField("Location");
-                    connection.disconnect();
-                    send(location, data, timeout, isJson);
-                } else {
-                    connection.disconnect();
+                send(location, data, timeout, contentType, redirectsLeft - 1);
+                return;
+            }
+            // Reading the whole response lets the next notification reuse the connection.
+            try (InputStream input = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+                if (input != null) {
+                    input.transferTo(OutputStream.nullOutputStream());
                 }
             }
+            HttpStatusException.check(status, connection.getHeaderField("Retry-After"));
+        }
+
+        /**
+         * Sends the payload with the content type of its format, compressed if the notification says so. Only the
+         * pooled client compresses.
+         */
+        @Override
+        protected CompletableFuture<Void> sendAsync(Notification notification) {
+            String url = notification.getUrl();
+            byte[] data = notification.getPayload();
+            int timeout = notification.getTimeout();
+            String contentType = notification.getContentType();
+            if (HttpTransport.POOLED) {
+                return HttpTransport.sendAsync(url, data, timeout, contentType, notification.getCompression());
+            }
+            return complete(() -> send(url, data, timeout, contentType, HttpTransport.MAX_REDIRECTS));
+        }
+
+        @Override
+        public String getDestination(String url) {
+            try {
+                URI uri = new URI(url);
+                String scheme = uri.getScheme();
+                if (scheme != null && uri.getHost() != null) {
+                    int port = uri.getPort() >= 0 ? uri.getPort() : "https".equalsIgnoreCase(scheme) ? 443 : 80;
+                    return scheme.toLowerCase() + "://" + uri.getHost() + ":" + port;
+                }
+            } catch (URISyntaxException e) {
+                // fall through
+            }
+            return url;
         }
 
         @Override
@@ -141,6 +223,30 @@ public enum Protocol {
 
     protected abstract void send(String url, byte[] data, int timeout, boolean isJson) throws IOException;
 
+    /**
+     * Sends a notification as configured by its endpoint, without waiting for the receiver if the protocol allows
+     * it. By default, it is sent uncompressed in the calling thread.
+     * @return Future completing once the receiver accepted the notification, or exceptionally if it could not be
+     * delivered.
+     */
+    protected CompletableFuture<Void> sendAsync(Notification notification) {
+        return complete(() -> send(
+                notification.getUrl(), notification.getPayload(), notification.getTimeout(), notification.isJson()));
+    }
+
+    /**
+     * Identifies the receiver behind a URL, so that endpoints sharing it also share its {@link CircuitBreaker}.
+     * @param url Expanded endpoint URL.
+     * @return The protocol, host and port of the receiver, or the URL itself if it can't be parsed.
+     */
+    public String getDestination(String url) {
+        HostnamePort hostnamePort = HostnamePort.parseUrl(url);
+        if (hostnamePort == null) {
+            return url;
+        }
+        return name().toLowerCase() + "://" + hostnamePort.hostname + ":" + hostnamePort.port;
+    }
+
     public void validateUrl(String url) {
         try {
             HostnamePort hnp = HostnamePort.parseUrl(url);
@@ -153,7 +259,23 @@ public enum Protocol {
         }
     }
 
+    private static CompletableFuture<Void> complete(Sending sending) {
+        try {
+            sending.send();
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     private static boolean isEmpty(String s) {
         return ((s == null) || (s.trim().isEmpty()));
     }
+
+    /**
+     * Sending in the calling thread.
+     */
+    private interface Sending {
+        void send() throws IOException;
+    }
 }
@@ -0,0 +1,78 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.util.Random;
+import jenkins.util.SystemProperties;
+
+/**
+ * Exponential backoff with jitter between delivery attempts.
+ * <p>
+ * The delay doubles with every failed attempt, from {@code ...RetryPolicy.initialDelay} (default 1000 ms) up to
+ * {@code ...RetryPolicy.maxDelay} (default 60000 ms). Only half of it is fixed, the other half is random, so builds
+ * failing against the same receiver at the same time don't retry in lockstep. A notification is not retried once it
+ * is older than {@code ...RetryPolicy.maxAge} (default 3600000 ms), whatever the endpoint's retry count.
+ */
+final class RetryPolicy {
+
+    static final RetryPolicy DEFAULT = new RetryPolicy(
+            SystemProperties.getLong(RetryPolicy.class.getName() + ".initialDelay", 1000L),
+            SystemProperties.getLong(RetryPolicy.class.getName() + ".maxDelay", 60000L),
+            SystemProperties.getLong(RetryPolicy.class.getName() + ".maxAge", 3600000L));
+
+    private final long initialDelay;
+
+    private final long maxDelay;
+
+    private final long maxAge;
+
+    RetryPolicy(long initialDelay, long maxDelay, long maxAge) {
+        this.initialDelay = Math.max(0, initialDelay);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return Delay before the first retry, in milliseconds.
+     */
+    long getInitialDelay() {
+        return initialDelay;
+    }
+
+    /**
+     * @param age Milliseconds since the notification was created.
+     * @return Whether the notification is too old to be delivered anymore.
+     */
+    boolean isExpired(long age) {
+        return age > maxAge;
+    }
+
+    /**
+     * Computes the delay before the next attempt.
+     * @param failedAttempts Number of attempts that failed so far, at least 1.
+     * @param age Milliseconds since the notification was created.
+     * @param random Source of jitter.
+     * @return Delay in milliseconds, or -1 if the notification would be too old by then.
+     */
+    long nextDelay(int failedAttempts, long age, Random random) {
+        double exponential = initialDelay * Math.pow(2, Math.max(0, failedAttempts - 1));
+        long ceiling = (long) Math.min(maxDelay, exponential);
+        long half = ceiling / 2;
+        long delay = ceiling - half + (half > 0 ? random.nextLong(half + 1) : 0);
+        if (isExpired(age + delay)) {
+            return -1;
+        }
+        return delay;
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Sends {@link Protocol#TCP} notifications getting a connection of their own without blocking: a single thread
+ * connects, writes and closes the connections of all of them with non-blocking {@link SocketChannel}s, so hundreds of
+ * notifications can be on the way at once without a thread each.
+ * <p>
+ * Only that thread writes, so payloads go through a single direct buffer it owns, sparing the copy the JDK makes of
+ * heap buffers. Every address of the receiver is tried in turn until one accepts the connection, see
+ * {@link DnsCache}. The timeout of the endpoint bounds the whole delivery, not just the connection. Deliveries are
+ * completed on the {@link NotificationDispatcher} workers, so that what follows them never runs on the selector
+ * thread. The thread stops along with the dispatcher. Setting
+ * {@code com.tikal.hudson.plugins.notification.TcpSelector.enabled} to {@code false} goes back to a blocking socket
+ * per notification, in a dispatcher worker.
+ */
+final class TcpSelector implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(TcpSelector.class.getName());
+
+    static final boolean ENABLED = SystemProperties.getBoolean(TcpSelector.class.getName() + ".enabled", true);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Longest wait between checks of the timeouts.
+     */
+    private static final long MAX_SELECT = 1000;
+
+    private static volatile TcpSelector instance;
+
+    private final Selector selector;
+
+    private final Executor completions;
+
+    private final Thread thread;
+
+    private final Queue<Delivery> added = new ConcurrentLinkedQueue<>();
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private volatile boolean stopped;
+
+    /**
+     * @param completions Executor completing the deliveries.
+     */
+    TcpSelector(Executor completions) throws IOException {
+        this.selector = Selector.open();
+        this.completions = completions;
+        this.thread = new Thread(this, "TcpSelector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static TcpSelector get() {
+        TcpSelector tcpSelector = instance;
+        if (tcpSelector == null) {
+            synchronized (TcpSelector.class) {
+                tcpSelector = instance;
+                if (tcpSelector == null) {
+                    try {
+                        // Completing a delivery only frees its slots, it goes ahead of new deliveries.
+                        tcpSelector = instance =
+                                new TcpSelector(task -> NotificationDispatcher.get().execute(Priority.HIGH, task));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        }
+        return tcpSelector;
+    }
+
+    /**
+     * Stops the selector thread if it was started, see {@link NotificationDispatcher#shutdown()}.
+     */
+    static void shutdown() throws InterruptedException {
+        TcpSelector tcpSelector = instance;
+        if (tcpSelector != null) {
+            tcpSelector.stop();
+        }
+    }
+
+    /**
+     * Connects to the receiver, writes the payload and closes the connection.
+     * @return Future completing once the payload was written.
+     */
+    CompletableFuture<Void> send(String url, byte[] data, int timeout) {
+        HostnamePort hostnamePort = HostnamePort.parseUrl(url);
+        if (hostnamePort == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Not a hostname:port url: " + url));
+        }
+        List<InetAddress> addresses;
+        try {
+            addresses = DnsCache.resolve(hostnamePort.hostname);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (stopped) {
+            return CompletableFuture.failedFuture(new IOException("Shutting down"));
+        }
+        Delivery delivery = new Delivery(hostnamePort, addresses, data, timeout);
+        added.add(delivery);
+        if (stopped && added.remove(delivery)) {
+            // The selector thread may be done already.
+            return CompletableFuture.failedFuture(new IOException("Shutting down"));
+        }
+        selector.wakeup();
+        return delivery.future;
+    }
+
+    /**
+     * Fails the deliveries still on their way and waits for the selector thread to end.
+     */
+    void stop() throws InterruptedException {
+        stopped = true;
+        selector.wakeup();
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                selector.select(MAX_SELECT);
+                Delivery delivery;
+                while ((delivery = added.poll()) != null) {
+                    connect(delivery);
+                }
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    handle(key, (Delivery) key.attachment());
+                }
+                expire();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "TCP selector failed", e);
+            }
+        }
+        IOException shuttingDown = new IOException("Shutting down");
+        for (SelectionKey key : selector.keys()) {
+            close((SocketChannel) key.channel());
+            complete((Delivery) key.attachment(), shuttingDown);
+        }
+        Delivery delivery;
+        while ((delivery = added.poll()) != null) {
+            complete(delivery, shuttingDown);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close TCP selector", e);
+        }
+    }
+
+    /**
+     * Starts connecting to the next address of the receiver.
+     */
+    private void connect(Delivery delivery) {
+        while (delivery.nextAddress < delivery.addresses.size()) {
+            InetAddress address = delivery.addresses.get(delivery.nextAddress++);
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                delivery.address = address;
+                if (channel.connect(new InetSocketAddress(address, delivery.hostnamePort.port))) {
+                    channel.register(selector, SelectionKey.OP_WRITE, delivery);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, delivery);
+                }
+                return;
+            } catch (IOException e) {
+                close(channel);
+                failed(delivery, e);
+            }
+        }
+        complete(delivery, delivery.failure != null ? delivery.failure : new IOException("No address to connect to"));
+    }
+
+    private void handle(SelectionKey key, Delivery delivery) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (key.isWritable()) {
+                write(channel, delivery);
+            }
+        } catch (IOException e) {
+            close(channel);
+            if (delivery.written == 0) {
+                // Nothing reached the receiver yet, its next address may do better.
+                failed(delivery, e);
+                connect(delivery);
+            } else {
+                complete(delivery, e);
+            }
+        }
+    }
+
+    private void write(SocketChannel channel, Delivery delivery) throws IOException {
+        byte[] data = delivery.data;
+        while (delivery.written < data.length) {
+            buffer.clear();
+            buffer.put(data, delivery.written, Math.min(buffer.capacity(), data.length - delivery.written));
+            buffer.flip();
+            int written = channel.write(buffer);
+            delivery.written += written;
+            if (buffer.hasRemaining()) {
+                // The receiver is slower than us, carry on once it read some.
+                return;
+            }
+        }
+        close(channel);
+        complete(delivery, null);
+    }
+
+    private void expire() {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            Delivery delivery = (Delivery) key.attachment();
+            if (delivery.timeout > 0 && now - delivery.deadline >= 0) {
+                close((SocketChannel) key.channel());
+                complete(delivery, new SocketTimeoutException(
+                        "Timed out notifying " + delivery.hostnamePort.hostname + ":" + delivery.hostnamePort.port));
+            }
+        }
+    }
+
+    /**
+     * Completes a delivery off the selector thread, or right away once the workers are gone.
+     * @param failure Why the delivery failed, null if it succeeded.
+     */
+    private void complete(Delivery delivery, IOException failure) {
+        Runnable completion = failure == null
+                ? () -> delivery.future.complete(null)
+                : () -> delivery.future.completeExceptionally(failure);
+        try {
+            completions.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    private void failed(Delivery delivery, IOException e) {
+        if (delivery.address != null) {
+            DnsCache.demote(delivery.hostnamePort.hostname, delivery.address);
+        }
+        if (delivery.failure == null) {
+            delivery.failure = e;
+        } else {
+            delivery.failure.addSuppressed(e);
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close TCP connection", e);
+            }
+        }
+    }
+
+    /**
+     * A notification on its way, only touched by the selector thread once added.
+     */
+    private static final class Delivery {
+        private final HostnamePort hostnamePort;
+        private final List<InetAddress> addresses;
+        private final byte[] data;
+        private final int timeout;
+        private final long deadline;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private int nextAddress;
+        private InetAddress address;
+        private int written;
+        private IOException failure;
+
+        Delivery(HostnamePort hostnamePort, List<InetAddress> addresses, byte[] data, int timeout) {
+            this.hostnamePort = hostnamePort;
+            this.addresses = addresses;
+            this.data = data;
+            this.timeout = timeout;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        }
+    }
+}
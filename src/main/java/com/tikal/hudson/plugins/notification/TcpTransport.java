@@ -0,0 +1,243 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Sends {@link Protocol#TCP} notifications of endpoints with a {@link Framing} over one persistent connection per
+ * receiver, instead of a connection per notification. Notifications to the same receiver are written one at a time,
+ * so frames never interleave.
+ * <p>
+ * A connection found closed by the receiver before writing is reopened. Once any byte of a notification is written,
+ * a failure is reported as is and the notification is never written again by the transport, as the receiver may
+ * have gotten it. With acknowledgements, the receiver answers every frame with a line: {@code OK} when it accepted
+ * the notification, anything else is taken as the reason it did not. Without them, a notification written just as
+ * the receiver closes the connection may be lost. A connection unused for
+ * {@code com.tikal.hudson.plugins.notification.TcpTransport.idleTimeout} milliseconds (default 300000) is closed and
+ * forgotten.
+ */
+final class TcpTransport {
+
+    private static final Logger LOGGER = Logger.getLogger(TcpTransport.class.getName());
+
+    static final long IDLE_TIMEOUT = SystemProperties.getLong(TcpTransport.class.getName() + ".idleTimeout", 300000L);
+
+    /**
+     * Longest acknowledgement read, longer ones are cut.
+     */
+    private static final int MAX_ACK_LENGTH = 1024;
+
+    private static final ConcurrentMap<String, Connection> CONNECTIONS = new ConcurrentHashMap<>();
+
+    private TcpTransport() {}
+
+    /**
+     * Writes a notification to the connection of its receiver, opening it if needed.
+     * @param acknowledged Whether to wait for the receiver to acknowledge the notification.
+     */
+    static void send(
+            String url, byte[] data, int timeout, Framing framing, Compression compression, boolean acknowledged)
+            throws IOException {
+        HostnamePort hostnamePort = HostnamePort.parseUrl(url);
+        if (hostnamePort == null) {
+            throw new IllegalArgumentException("Not a hostname:port url: " + url);
+        }
+        byte[] frame = framing.frame(data, compression);
+        long now = System.nanoTime();
+        evictIdle(now);
+        // Receivers expecting different framings are told apart, in case they share an address.
+        String key = framing + " " + hostnamePort.hostname + ":" + hostnamePort.port;
+        while (!CONNECTIONS
+                .computeIfAbsent(key, k -> new Connection(hostnamePort.hostname, hostnamePort.port))
+                .send(frame, timeout, acknowledged, now)) {
+            // Evicted while idle in the meantime, a new connection takes its place.
+        }
+    }
+
+    /**
+     * Connects to the first address of the host that accepts the connection, see {@link DnsCache}.
+     */
+    static Socket connect(String hostname, int port, int timeout) throws IOException {
+        IOException failure = null;
+        for (InetAddress address : DnsCache.resolve(hostname)) {
+            // Through a channel, so that a persistent connection can tell it was closed without blocking.
+            Socket socket = SocketChannel.open().socket();
+            try {
+                socket.connect(new InetSocketAddress(address, port), timeout);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                DnsCache.demote(hostname, address);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        throw failure != null ? failure : new UnknownHostException(hostname);
+    }
+
+    private static void evictIdle(long now) {
+        long idle = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT);
+        for (Map.Entry<String, Connection> entry : CONNECTIONS.entrySet()) {
+            Connection connection = entry.getValue();
+            if (now - connection.lastUsed > idle && connection.retireIfIdle(now - idle)) {
+                CONNECTIONS.remove(entry.getKey(), connection);
+            }
+        }
+    }
+
+    private static final class Connection {
+        private final String hostname;
+        private final int port;
+        private volatile long lastUsed = System.nanoTime();
+        private Socket socket;
+        private boolean retired;
+
+        Connection(String hostname, int port) {
+            this.hostname = hostname;
+            this.port = port;
+        }
+
+        /**
+         * @return False if the connection was evicted, nothing was written.
+         */
+        synchronized boolean send(byte[] frame, int timeout, boolean acknowledged, long now) throws IOException {
+            if (retired) {
+                return false;
+            }
+            lastUsed = now;
+            if (socket != null && isClosedByReceiver()) {
+                // Most likely closed by the receiver while idle, nothing is written yet.
+                LOGGER.log(Level.FINE, "Reconnecting to " + hostname + ":" + port);
+                close();
+            }
+            try {
+                write(frame, timeout, acknowledged);
+            } catch (AcknowledgementException e) {
+                throw e;
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            return true;
+        }
+
+        /**
+         * @return Whether the receiver closed the connection, or sent something it should not have, in which case the
+         * connection is out of step.
+         */
+        private boolean isClosedByReceiver() {
+            SocketChannel channel = socket.getChannel();
+            try {
+                channel.configureBlocking(false);
+                try {
+                    return channel.read(ByteBuffer.allocate(1)) != 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        private void write(byte[] frame, int timeout, boolean acknowledged) throws IOException {
+            if (socket == null) {
+                Socket s = connect(hostname, port, timeout);
+                s.setTcpNoDelay(true);
+                s.setKeepAlive(true);
+                socket = s;
+            }
+            socket.setSoTimeout(timeout);
+            OutputStream output = socket.getOutputStream();
+            output.write(frame);
+            output.flush();
+            if (acknowledged) {
+                String ack = readLine(socket.getInputStream());
+                if (!ack.trim().equalsIgnoreCase("OK")) {
+                    throw new AcknowledgementException(
+                            "Notification rejected by " + hostname + ":" + port + ": " + ack);
+                }
+            }
+        }
+
+        private static String readLine(InputStream input) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = input.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("Connection closed before acknowledgement");
+                }
+                if (line.size() < MAX_ACK_LENGTH) {
+                    line.write(b);
+                }
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Closes the connection if it was not used since the given time, it is then never used again.
+         * @return Whether it was retired.
+         */
+        synchronized boolean retireIfIdle(long usedBefore) {
+            if (usedBefore - lastUsed > 0) {
+                close();
+                retired = true;
+            }
+            return retired;
+        }
+
+        private void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close connection to " + hostname + ":" + port, e);
+                }
+                socket = null;
+            }
+        }
+    }
+
+    /**
+     * The receiver answered, but did not accept the notification: no point writing it again right away.
+     */
+    private static final class AcknowledgementException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        AcknowledgementException(String message) {
+            super(message);
+        }
+    }
+}
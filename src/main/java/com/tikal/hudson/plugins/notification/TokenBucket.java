@@ -0,0 +1,135 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import javax.annotation.CheckForNull;
+import jenkins.util.SystemProperties;
+
+/**
+ * Token bucket limiting the rate of deliveries, implemented as a generic cell rate algorithm: the state is the single
+ * time at which the bucket will be full again, updated with compare-and-set, so checking a bucket never blocks and
+ * buckets of unrelated endpoints never contend.
+ * <p>
+ * A bucket never refuses a delivery, it reserves the next free slot and tells how long to wait for it, so bursts are
+ * queued on the retry timer rather than dropped.
+ * <p>
+ * Besides the rate set on each {@link Endpoint}, deliveries to the same receiver can share a bucket across all jobs
+ * with the {@code ...TokenBucket.destinationRate} (notifications per minute, default 0 for unlimited) and
+ * {@code ...TokenBucket.destinationBurst} (default 1) system properties.
+ */
+final class TokenBucket {
+
+    private static final int DESTINATION_RATE =
+            SystemProperties.getInteger(TokenBucket.class.getName() + ".destinationRate", 0);
+
+    private static final int DESTINATION_BURST =
+            SystemProperties.getInteger(TokenBucket.class.getName() + ".destinationBurst", 1);
+
+    /**
+     * Number of destinations past which full buckets are forgotten.
+     */
+    private static final int MAX_DESTINATIONS = 1024;
+
+    private static final ConcurrentMap<String, TokenBucket> DESTINATIONS = new ConcurrentHashMap<>();
+
+    /**
+     * Nanoseconds needed to earn one token.
+     */
+    private final long interval;
+
+    /**
+     * How far ahead of the current time the bucket may be booked without waiting, i.e. the burst size.
+     */
+    private final long tolerance;
+
+    private final LongSupplier clock;
+
+    /**
+     * Time at which the bucket is full again, in {@link #clock} nanoseconds.
+     */
+    private final AtomicLong theoreticalArrival;
+
+    /**
+     * @param ratePerMinute Sustained number of deliveries per minute.
+     * @param burst Number of deliveries allowed at once after a quiet period.
+     * @param clock Source of time in nanoseconds.
+     */
+    TokenBucket(int ratePerMinute, int burst, LongSupplier clock) {
+        this.interval = TimeUnit.MINUTES.toNanos(1) / Math.max(1, ratePerMinute);
+        this.tolerance = interval * (Math.max(1, burst) - 1);
+        this.clock = clock;
+        this.theoreticalArrival = new AtomicLong(clock.getAsLong());
+    }
+
+    /**
+     * @param ratePerMinute Sustained number of deliveries per minute, 0 or less for unlimited.
+     * @param burst Number of deliveries allowed at once after a quiet period.
+     * @return A new bucket, or null if the rate is unlimited.
+     */
+    @CheckForNull
+    static TokenBucket of(int ratePerMinute, int burst) {
+        return ratePerMinute > 0 ? new TokenBucket(ratePerMinute, burst, System::nanoTime) : null;
+    }
+
+    /**
+     * @param destination Destination as returned by {@link Protocol#getDestination(String)}.
+     * @return The bucket shared by all deliveries to that destination, or null if they are not limited.
+     */
+    @CheckForNull
+    static TokenBucket forDestination(String destination) {
+        if (DESTINATION_RATE <= 0) {
+            return null;
+        }
+        TokenBucket bucket = DESTINATIONS.get(destination);
+        if (bucket == null) {
+            if (DESTINATIONS.size() >= MAX_DESTINATIONS) {
+                DESTINATIONS.values().removeIf(TokenBucket::isFull);
+            }
+            bucket = DESTINATIONS.computeIfAbsent(
+                    destination, d -> new TokenBucket(DESTINATION_RATE, DESTINATION_BURST, System::nanoTime));
+        }
+        return bucket;
+    }
+
+    /**
+     * Books a token for a delivery.
+     * @param delay Milliseconds before the delivery would happen without rate limiting.
+     * @return Milliseconds before the delivery may happen, at least {@code delay}.
+     */
+    long reserve(long delay) {
+        long now = clock.getAsLong();
+        long notBefore = now + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+        long arrival;
+        long allowedAt;
+        do {
+            arrival = theoreticalArrival.get();
+            allowedAt = Math.max(notBefore, arrival - tolerance);
+        } while (!theoreticalArrival.compareAndSet(arrival, Math.max(arrival, notBefore) + interval));
+        long wait = allowedAt - now;
+        // Round up, so the delivery never happens before its slot.
+        return (wait + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return Whether the bucket is full again, so that replacing it with a new one would not change any delay.
+     */
+    boolean isFull() {
+        return theoreticalArrival.get() - clock.getAsLong() <= 0;
+    }
+}
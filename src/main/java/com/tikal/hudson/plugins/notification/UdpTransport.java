@@ -0,0 +1,114 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import jenkins.util.SystemProperties;
+
+/**
+ * Sends {@link Protocol#UDP} notifications through a single {@link DatagramChannel}, shared by all of them.
+ * <p>
+ * A payload larger than {@code com.tikal.hudson.plugins.notification.UdpTransport.maxDatagramSize} bytes (default
+ * 65507, the most an IPv4 datagram carries) is rejected for good, without retries, unless
+ * {@code ...UdpTransport.fragmented} is {@code true}. The payload is then split into datagrams of at most that size,
+ * each starting with a 12-byte big-endian header: the id of the notification (8 bytes), the index of the fragment
+ * and the number of fragments (2 bytes each). Lowering the size to the path MTU (e.g. 1472 on Ethernet) avoids IP
+ * fragmentation, in which losing any packet loses the whole datagram.
+ */
+final class UdpTransport {
+
+    static final int MAX_DATAGRAM_SIZE =
+            SystemProperties.getInteger(UdpTransport.class.getName() + ".maxDatagramSize", 65507);
+
+    static final boolean FRAGMENTED = SystemProperties.getBoolean(UdpTransport.class.getName() + ".fragmented");
+
+    static final int HEADER_SIZE = 12;
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(System.currentTimeMillis() << 16);
+
+    private static final AtomicLong OVERSIZED = new AtomicLong();
+
+    private static final AtomicLong FRAGMENTED_COUNT = new AtomicLong();
+
+    private static DatagramChannel channel;
+
+    private UdpTransport() {}
+
+    static void send(String url, byte[] data) throws IOException {
+        HostnamePort hostnamePort = HostnamePort.parseUrl(url);
+        if (hostnamePort == null) {
+            throw new IllegalArgumentException("Not a hostname:port url: " + url);
+        }
+        // Nothing tells whether a datagram arrived, the preferred address is the only one used.
+        InetSocketAddress target =
+                new InetSocketAddress(DnsCache.resolve(hostnamePort.hostname).get(0), hostnamePort.port);
+        if (data.length <= MAX_DATAGRAM_SIZE) {
+            send(ByteBuffer.wrap(data), target);
+            return;
+        }
+        int chunk = MAX_DATAGRAM_SIZE - HEADER_SIZE;
+        int count = (data.length + chunk - 1) / chunk;
+        if (!FRAGMENTED || chunk <= 0 || count > 0xFFFF) {
+            // It won't fit any better next time, so the notification is not retried and only counted once.
+            OVERSIZED.incrementAndGet();
+            throw new IllegalArgumentException(String.format(
+                    "Payload of %d bytes does not fit in a datagram of %d bytes", data.length, MAX_DATAGRAM_SIZE));
+        }
+        long id = NEXT_ID.getAndIncrement();
+        ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        for (int index = 0; index < count; index++) {
+            int offset = index * chunk;
+            datagram.clear();
+            datagram.putLong(id)
+                    .putShort((short) index)
+                    .putShort((short) count)
+                    .put(data, offset, Math.min(chunk, data.length - offset))
+                    .flip();
+            send(datagram, target);
+        }
+        // Counted once all fragments are sent, a failed attempt is retried and would count again.
+        OVERSIZED.incrementAndGet();
+        FRAGMENTED_COUNT.incrementAndGet();
+    }
+
+    private static void send(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+        channel().send(datagram, target);
+    }
+
+    private static synchronized DatagramChannel channel() throws IOException {
+        // Closed if a sender was interrupted, the next notification gets a new channel.
+        if (channel == null || !channel.isOpen()) {
+            channel = DatagramChannel.open();
+        }
+        return channel;
+    }
+
+    /**
+     * @return Number of notifications larger than a datagram, since Jenkins started.
+     */
+    static long getOversized() {
+        return OVERSIZED.get();
+    }
+
+    /**
+     * @return Number of notifications sent in fragments, since Jenkins started.
+     */
+    static long getFragmented() {
+        return FRAGMENTED_COUNT.get();
+    }
+}
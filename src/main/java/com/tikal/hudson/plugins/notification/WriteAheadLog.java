@@ -0,0 +1,458 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tikal.hudson.plugins.notification;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of records split into segment files, with acknowledgements.
+ * <p>
+ * Every record is framed as {@code length, crc32, type, id, data}. A single writer thread appends records and
+ * acknowledgements in batches and forces each batch to disk once (group commit), so many producers share one
+ * {@code fsync}. Segments are reclaimed oldest first: once the records still alive in the oldest closed segment are
+ * small compared to the acknowledged bytes held on disk, they are copied into the current segment and the file is
+ * deleted. Reclaiming only the oldest segment guarantees that no acknowledgement is dropped while the record it
+ * refers to still exists, and copying forward keeps a single stuck record from pinning every later segment.
+ * <p>
+ * When a batch can't be written or forced to disk, its records are reported as failed and the log moves on to a new
+ * segment, so that the torn tail left behind doesn't hide later records on recovery.
+ * <p>
+ * Records that were never acknowledged are available from {@link #recover()} when the log is opened again.
+ */
+final class WriteAheadLog implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(WriteAheadLog.class.getName());
+
+    private static final byte APPEND = 1;
+
+    private static final byte ACK = 2;
+
+    private static final byte CLOSE = 3;
+
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 8;
+
+    private static final int MAX_BATCH = 1024;
+
+    private static final int MAX_RECORD_SIZE = 1 << 30;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+
+    private final long segmentSize;
+
+    private final SegmentOpener opener;
+
+    private final AtomicLong nextId = new AtomicLong();
+
+    private final BlockingQueue<Operation> queue = new LinkedBlockingQueue<>();
+
+    private final Thread writer;
+
+    // Everything below is only touched by the constructor and then the writer thread.
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    private final Map<Long, Segment> owners = new HashMap<>();
+
+    private final Map<Long, Integer> sizes = new HashMap<>();
+
+    private Map<Long, byte[]> recovered = new TreeMap<>();
+
+    private Segment current;
+
+    private FileChannel channel;
+
+    private boolean closed;
+
+    WriteAheadLog(File directory, long segmentSize) throws IOException {
+        this(directory, segmentSize, path -> FileChannel.open(
+                path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    WriteAheadLog(File directory, long segmentSize, SegmentOpener opener) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.opener = opener;
+        Files.createDirectories(directory.toPath());
+        load();
+        roll();
+        reclaim();
+        writer = new Thread(this::writeLoop, "WriteAheadLog writer for " + directory);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns the records that were appended but never acknowledged before the log was last closed, in append
+     * order. They stay in the log until acknowledged.
+     * @return Unacknowledged records by id. Subsequent calls return an empty map.
+     */
+    synchronized Map<Long, byte[]> recover() {
+        Map<Long, byte[]> result = recovered;
+        recovered = new TreeMap<>();
+        return result;
+    }
+
+    /**
+     * Appends a record.
+     * @param data Record content.
+     * @return Future completing with the record id once the record is on disk.
+     */
+    CompletableFuture<Long> append(byte[] data) {
+        Operation operation = new Operation(APPEND, nextId.getAndIncrement(), data);
+        enqueue(operation);
+        return operation.done;
+    }
+
+    /**
+     * Marks a record as processed, so it is not recovered anymore and its segment can be reclaimed.
+     * @param id Id returned by {@link #append(byte[])}.
+     */
+    void ack(long id) {
+        enqueue(new Operation(ACK, id, null));
+    }
+
+    private synchronized void enqueue(Operation operation) {
+        if (closed) {
+            operation.done.completeExceptionally(new IOException("Log is closed: " + directory));
+            return;
+        }
+        queue.add(operation);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            // Everything queued so far is still written, the writer stops at this marker.
+            queue.add(new Operation(CLOSE, -1, null));
+            closed = true;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * @return Number of segment files currently on disk.
+     */
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    private void load() throws IOException {
+        File[] files =
+                directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    long sequence = Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(sequence, new Segment(sequence, file));
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring unexpected file {0}", file);
+                }
+            }
+        }
+
+        long maxId = -1;
+        for (Segment segment : segments.values()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(segment.file.toPath())))) {
+                Record record;
+                while ((record = readRecord(in)) != null) {
+                    maxId = Math.max(maxId, record.id);
+                    segment.size += HEADER_SIZE + record.data.length;
+                    if (record.type == APPEND) {
+                        appended(record.id, segment, record.data.length);
+                        recovered.put(record.id, record.data);
+                    } else if (record.type == ACK) {
+                        acknowledged(record.id);
+                        recovered.remove(record.id);
+                    }
+                }
+            }
+        }
+        nextId.set(maxId + 1);
+    }
+
+    /**
+     * Reads the next record.
+     * @return The record, or null at the end of the segment or at a torn write.
+     */
+    private static Record readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            byte type = in.readByte();
+            long id = in.readLong();
+            if (length < 0 || length > MAX_RECORD_SIZE) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            if (crc != checksum(type, id, data)) {
+                return null;
+            }
+            return new Record(type, id, data);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static int checksum(byte type, long id, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (id >>> shift));
+        }
+        if (data != null) {
+            crc.update(data);
+        }
+        return (int) crc.getValue();
+    }
+
+    private void writeLoop() {
+        List<Operation> batch = new ArrayList<>();
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            stop = batch.removeIf(operation -> operation.type == CLOSE);
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Operation> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long committed = current.size;
+        try {
+            for (Operation operation : batch) {
+                write(operation.type, operation.id, operation.data);
+                if (operation.type == APPEND) {
+                    appended(operation.id, current, operation.data.length);
+                }
+            }
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to write to " + directory, e);
+            for (Operation operation : batch) {
+                if (operation.type == APPEND && owners.get(operation.id) == current) {
+                    // The record may not be on disk, it must not keep the segment from being reclaimed.
+                    acknowledged(operation.id);
+                }
+                operation.done.completeExceptionally(e);
+            }
+            abandon(committed);
+            return;
+        }
+        for (Operation operation : batch) {
+            if (operation.type == ACK) {
+                acknowledged(operation.id);
+            }
+            operation.done.complete(operation.id);
+        }
+        try {
+            if (channel.size() >= segmentSize) {
+                roll();
+            }
+            reclaim();
+        } catch (IOException | RuntimeException e) {
+            // Records copied so far stay owned by the current segment, their originals are still on disk.
+            LOGGER.log(Level.WARNING, "Failed to reclaim segments of " + directory, e);
+            abandon(current.size);
+        }
+    }
+
+    /**
+     * Leaves the current segment after a failed write, cutting off its torn tail if possible, so that later records
+     * go to a new segment. If no new segment can be opened, the next batch fails and tries again.
+     * @param size Size of the complete records at the start of the segment.
+     */
+    private void abandon(long size) {
+        try {
+            if (channel.isOpen()) {
+                channel.truncate(size);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Failed to truncate " + current.file, e);
+        }
+        current.size = size;
+        try {
+            roll();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to open a new segment in " + directory, e);
+        }
+    }
+
+    private void write(byte type, long id, byte[] data) throws IOException {
+        byte[] content = data != null ? data : new byte[0];
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(content.length).putInt(checksum(type, id, content)).put(type).putLong(id);
+        header.flip();
+        ByteBuffer[] buffers = {header, ByteBuffer.wrap(content)};
+        while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+            channel.write(buffers);
+        }
+        current.size += HEADER_SIZE + content.length;
+    }
+
+    private void appended(long id, Segment segment, int length) {
+        Segment previous = owners.put(id, segment);
+        if (previous != null) {
+            previous.liveBytes -= sizes.get(id);
+        }
+        sizes.put(id, HEADER_SIZE + length);
+        segment.liveBytes += HEADER_SIZE + length;
+    }
+
+    private void acknowledged(long id) {
+        Segment segment = owners.remove(id);
+        if (segment != null) {
+            segment.liveBytes -= sizes.remove(id);
+        }
+    }
+
+    private void roll() throws IOException {
+        long sequence = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        String name = String.format("%s%019d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX);
+        Segment next = new Segment(sequence, new File(directory, name));
+        FileChannel opened = opener.open(next.file.toPath());
+        FileChannel previous = channel;
+        current = next;
+        segments.put(sequence, current);
+        channel = opened;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Deletes the oldest segments while copying their remaining records into the current segment is cheap compared
+     * to the acknowledged bytes on disk.
+     */
+    private void reclaim() throws IOException {
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            long garbage = 0;
+            for (Segment segment : segments.values()) {
+                if (segment != current) {
+                    garbage += segment.size - segment.liveBytes;
+                }
+            }
+            if (oldest == current || (oldest.liveBytes > 0 && oldest.liveBytes * 4 >= garbage)) {
+                return;
+            }
+            if (oldest.liveBytes > 0) {
+                try (InputStream file = Files.newInputStream(oldest.file.toPath());
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+                    Record record;
+                    while ((record = readRecord(in)) != null) {
+                        if (record.type == APPEND && owners.get(record.id) == oldest) {
+                            write(APPEND, record.id, record.data);
+                            appended(record.id, current, record.data.length);
+                        }
+                    }
+                }
+                // The copies must be durable before the originals go away.
+                channel.force(false);
+            }
+            Files.deleteIfExists(oldest.file.toPath());
+            segments.remove(oldest.sequence);
+        }
+    }
+
+    /**
+     * Opens segment files for appending.
+     */
+    interface SegmentOpener {
+        FileChannel open(Path path) throws IOException;
+    }
+
+    private static final class Segment {
+        private final long sequence;
+        private final File file;
+        private long size;
+        private long liveBytes;
+
+        Segment(long sequence, File file) {
+            this.sequence = sequence;
+            this.file = file;
+        }
+    }
+
+    private static final class Record {
+        private final byte type;
+        private final long id;
+        private final byte[] data;
+
+        Record(byte type, long id, byte[] data) {
+            this.type = type;
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    private static final class Operation {
+        private final byte type;
+        private final long id;
+        private final byte[] data;
+        private final CompletableFuture<Long> done = new CompletableFuture<>();
+
+        Operation(byte type, long id, byte[] data) {
+            this.type = type;
+            this.id = id;
+            this.data = data;
+        }
+    }
+}
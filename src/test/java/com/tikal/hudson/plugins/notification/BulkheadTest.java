@@ -0,0 +1,66 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class BulkheadTest {
+
+    private final Bulkhead bulkhead = new Bulkhead(2, 1);
+
+    private final List<String> started = new ArrayList<>();
+
+    @Test
+    public void testQueuesOverflowAndRejectsWhenFull() {
+        assertTrue(bulkhead.enter(() -> started.add("first")));
+        assertTrue(bulkhead.enter(() -> started.add("second")));
+        assertTrue("waits for a slot", bulkhead.enter(() -> started.add("third")));
+        assertFalse("queue is full", bulkhead.enter(() -> started.add("fourth")));
+
+        assertEquals(List.of("first", "second"), started);
+        assertEquals(2, bulkhead.getInFlight());
+        assertEquals(1, bulkhead.getQueued());
+    }
+
+    @Test
+    public void testReleaseHandsSlotOver() {
+        bulkhead.enter(() -> started.add("first"));
+        bulkhead.enter(() -> started.add("second"));
+        bulkhead.enter(() -> started.add("third"));
+
+        bulkhead.release();
+        assertEquals(List.of("first", "second", "third"), started);
+        assertEquals(2, bulkhead.getInFlight());
+        assertEquals(0, bulkhead.getQueued());
+
+        bulkhead.release();
+        bulkhead.release();
+        assertEquals(0, bulkhead.getInFlight());
+    }
+
+    @Test
+    public void testIdleOnceAllReleased() {
+        assertTrue(bulkhead.isIdle());
+        bulkhead.enter(() -> {});
+        assertFalse(bulkhead.isIdle());
+
+        bulkhead.release();
+        assertTrue(bulkhead.isIdle());
+    }
+
+    @Test
+    public void testHigherPriorityOvertakesWaitingDeliveries() {
+        Bulkhead single = new Bulkhead(1, 2);
+        single.enter(() -> started.add("running"));
+        single.enter(new PriorityLaneQueue.Task(Priority.LOW, () -> started.add("low")));
+        single.enter(new PriorityLaneQueue.Task(Priority.HIGH, () -> started.add("high")));
+
+        single.release();
+        single.release();
+        assertEquals(List.of("running", "high", "low"), started);
+    }
+}
@@ -0,0 +1,133 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private final CircuitBreaker breaker = new CircuitBreaker("http://example.com:80", 10, 4, 50, 30000, 1, now::get);
+
+    @Test
+    public void testStaysClosedBelowMinimumCalls() {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testOpensOnFailureRate() {
+        for (int i = 0; i < 6; i++) {
+            breaker.tryAcquire();
+            breaker.onSuccess();
+        }
+        for (int i = 0; i < 4; i++) {
+            breaker.tryAcquire();
+            breaker.onFailure();
+        }
+        assertEquals("40% failures", CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.tryAcquire();
+        breaker.onFailure();
+        // The oldest success left the window, 5 out of 10 failed.
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(30000, breaker.tryAcquire());
+
+        now.addAndGet(10000);
+        assertEquals(20000, breaker.tryAcquire());
+    }
+
+    @Test
+    public void testHalfOpenTrialCloses() {
+        open();
+        now.addAndGet(30000);
+
+        assertEquals("trial goes through", 0, breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue("others wait for the trial", breaker.tryAcquire() > 0);
+
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.tryAcquire());
+    }
+
+    @Test
+    public void testHalfOpenTrialReopens() {
+        open();
+        now.addAndGet(30000);
+
+        assertEquals(0, breaker.tryAcquire());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(30000, breaker.tryAcquire());
+    }
+
+    @Test
+    public void testSkippedTrialLetsAnotherOneThrough() {
+        open();
+        now.addAndGet(30000);
+
+        assertEquals(0, breaker.tryAcquire());
+        breaker.onSkipped();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(0, breaker.tryAcquire());
+    }
+
+    @Test
+    public void testOpensForRetryAfter() {
+        breaker.openFor(60000);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(60000, breaker.tryAcquire());
+
+        breaker.openFor(1000);
+        assertEquals("shorter delay ignored", 60000, breaker.tryAcquire());
+    }
+
+    @Test
+    public void testIdleOnceFailuresAreOld() {
+        assertTrue(breaker.isIdle());
+        breaker.tryAcquire();
+        breaker.onFailure();
+        assertFalse("recent failure", breaker.isIdle());
+
+        now.addAndGet(30000);
+        assertTrue(breaker.isIdle());
+        open();
+        now.addAndGet(60000);
+        assertFalse("open", breaker.isIdle());
+    }
+
+    @Test
+    public void testForgetsIdleBreakers() {
+        CircuitBreaker first = CircuitBreaker.forDestination("http://forgotten.example:80");
+        for (int i = 0; i < 1024; i++) {
+            CircuitBreaker.forDestination("http://many-" + i + ".example:80");
+        }
+        assertTrue(CircuitBreaker.getAll().size() <= 1024);
+        assertNotSame(first, CircuitBreaker.forDestination("http://forgotten.example:80"));
+    }
+
+    @Test
+    public void testDestinationIgnoresPath() {
+        assertEquals("http://example.com:80", Protocol.HTTP.getDestination("http://example.com/a/b?c=d"));
+        assertEquals("https://example.com:8443", Protocol.HTTP.getDestination("https://user@example.com:8443/"));
+        assertEquals("tcp://localhost:9000", Protocol.TCP.getDestination("localhost:9000"));
+        assertEquals("invalid", Protocol.UDP.getDestination("invalid"));
+    }
+
+    private void open() {
+        for (int i = 0; i < 4; i++) {
+            breaker.tryAcquire();
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
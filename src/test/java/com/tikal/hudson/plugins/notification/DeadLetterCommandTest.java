@@ -0,0 +1,120 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class DeadLetterCommandTest {
+
+    // Entries hold the endpoint and the encrypted URL, which need Jenkins.
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    private NotificationDispatcher dispatcher;
+
+    private DeadLetterQueue queue;
+
+    @Before
+    public void fillQueue() throws Exception {
+        dispatcher = new NotificationDispatcher(
+                1,
+                Executors.defaultThreadFactory(),
+                false,
+                0,
+                RetryPolicy.DEFAULT,
+                notification -> CompletableFuture.completedFuture(null),
+                () -> null,
+                () -> queue);
+        queue = new DeadLetterQueue(folder.getRoot(), dispatcher);
+        queue.add(failed("job#1", "http://first.example"));
+        queue.add(failed("job#2", "http://second.example"));
+    }
+
+    @After
+    public void stopDispatcher() throws InterruptedException {
+        dispatcher.stop();
+    }
+
+    @Test
+    public void testListsMatchingEntries() {
+        assertEquals(0, run(DeadLetterCommand.Action.LIST, "second"));
+
+        String listed = out.toString(StandardCharsets.UTF_8);
+        assertTrue(listed.contains("job#2\tCOMPLETED\turl 'http://second.example'"));
+        assertEquals(1, listed.lines().count());
+    }
+
+    @Test
+    public void testDiscardsMatchingEntries() {
+        assertEquals(0, run(DeadLetterCommand.Action.DISCARD, "first"));
+
+        assertEquals("Discarded 1 notifications", out.toString(StandardCharsets.UTF_8).trim());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testReplaysAllEntries() throws Exception {
+        assertEquals(0, run(DeadLetterCommand.Action.REPLAY, null));
+
+        assertEquals("Replaying 2 notifications", out.toString(StandardCharsets.UTF_8).trim());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!queue.getReplay().isDone() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testFailsWhenDisabled() {
+        DeadLetterCommand command = command(DeadLetterCommand.Action.LIST, null);
+
+        assertEquals(1, command.run(null));
+        assertEquals("The dead-letter queue is disabled", err.toString(StandardCharsets.UTF_8).trim());
+    }
+
+    private int run(DeadLetterCommand.Action action, String filter) {
+        return command(action, filter).run(queue);
+    }
+
+    private DeadLetterCommand command(DeadLetterCommand.Action action, String filter) {
+        DeadLetterCommand command = new DeadLetterCommand();
+        command.action = action;
+        command.filter = filter;
+        command.rate = 0;
+        command.stdout = new PrintStream(out, true, StandardCharsets.UTF_8);
+        command.stderr = new PrintStream(err, true, StandardCharsets.UTF_8);
+        return command;
+    }
+
+    private static Notification failed(String runId, String url) {
+        Notification notification = new Notification(
+                runId,
+                Phase.COMPLETED,
+                new Endpoint(new UrlInfo(UrlType.PUBLIC, url)),
+                url,
+                "url '" + url + "'",
+                "{}".getBytes(StandardCharsets.UTF_8),
+                null,
+                System.currentTimeMillis());
+        notification.setLastError("java.io.IOException: refused");
+        return notification;
+    }
+}
@@ -0,0 +1,76 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import hudson.model.Failure;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class DeadLetterManagementLinkTest {
+
+    // Entries hold the endpoint and the encrypted URL, which need Jenkins.
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NotificationDispatcher dispatcher;
+
+    @After
+    public void stopDispatcher() throws InterruptedException {
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void testNothingCheckedSelectsNothing() throws Exception {
+        dispatcher = new NotificationDispatcher(
+                1,
+                Executors.defaultThreadFactory(),
+                false,
+                0,
+                new RetryPolicy(10, 10, 60000),
+                notification -> CompletableFuture.completedFuture(null),
+                () -> null,
+                () -> null);
+        DeadLetterQueue queue = new DeadLetterQueue(folder.getRoot(), dispatcher);
+        queue.add(failed("job#1"));
+        queue.add(failed("job#2"));
+
+        for (String[] ids : new String[][] {null, {}}) {
+            try {
+                DeadLetterManagementLink.selected(queue, ids);
+                fail("Entries selected without any checked");
+            } catch (Failure e) {
+                // expected
+            }
+        }
+
+        String id = String.valueOf(queue.getEntries("job#2").get(0).getId());
+        assertEquals(queue.getEntries("job#2"), DeadLetterManagementLink.selected(queue, new String[] {id}));
+    }
+
+    private static Notification failed(String runId) {
+        Endpoint endpoint = new Endpoint(new UrlInfo(UrlType.PUBLIC, "http://dead.example"));
+        Notification notification = new Notification(
+                runId,
+                Phase.COMPLETED,
+                endpoint,
+                "http://dead.example",
+                "url 'http://dead.example'",
+                "{}".getBytes(StandardCharsets.UTF_8),
+                null,
+                System.currentTimeMillis());
+        notification.setLastError("java.io.IOException: refused");
+        return notification;
+    }
+}
@@ -0,0 +1,192 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class DeadLetterQueueTest {
+
+    // Entries hold the endpoint and the encrypted URL, which need Jenkins.
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Notification> sent = new CopyOnWriteArrayList<>();
+
+    private NotificationDispatcher dispatcher;
+
+    private DeadLetterQueue queue;
+
+    @After
+    public void stopDispatcher() throws InterruptedException {
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void testKeepsEntriesAcrossRestarts() throws Exception {
+        queue = queue(notification -> CompletableFuture.completedFuture(null));
+        queue.add(failed("job#1", Phase.COMPLETED, System.currentTimeMillis()));
+        queue.add(failed("job#2", Phase.FINALIZED, System.currentTimeMillis()));
+
+        DeadLetterQueue reloaded = new DeadLetterQueue(folder.getRoot(), dispatcher);
+        assertEquals(2, reloaded.size());
+        DeadLetterQueue.DeadLetter entry = reloaded.getEntries("job#2").get(0);
+        assertEquals(Phase.FINALIZED, entry.getPhase());
+        assertEquals("url 'http://dead.example'", entry.getUrlIdString());
+        assertEquals("java.io.IOException: refused", entry.getError());
+        assertEquals(1, reloaded.getEntries("FINALIZED").size());
+        assertEquals(2, reloaded.getEntries(null).size());
+    }
+
+    @Test
+    public void testDiscardDeletesEntries() throws Exception {
+        queue = queue(notification -> CompletableFuture.completedFuture(null));
+        queue.add(failed("job#1", Phase.COMPLETED, System.currentTimeMillis()));
+        queue.add(failed("job#2", Phase.COMPLETED, System.currentTimeMillis()));
+
+        assertEquals(1, queue.discard(queue.getEntries("job#1")));
+
+        assertEquals(1, queue.size());
+        assertEquals(1, new DeadLetterQueue(folder.getRoot(), dispatcher).size());
+        assertEquals(0, queue.discard(queue.getEntries("job#1")));
+    }
+
+    @Test
+    public void testReplayedEntryGetsAllItsRetries() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        queue = queue(notification -> {
+            sent.add(notification);
+            return attempts.incrementAndGet() == 1
+                    ? CompletableFuture.failedFuture(new IOException("refused"))
+                    : CompletableFuture.completedFuture(null);
+        });
+        // Older than the maximum age of the retry policy, it would not be retried anymore.
+        queue.add(failed("job#1", Phase.COMPLETED, System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+
+        DeadLetterQueue.Replay replay = queue.replay(queue.getEntries(null), 0);
+
+        await(() -> attempts.get() == 2 && replay.getDispatched() == 1);
+        assertTrue(replay.isDone());
+        assertEquals(0, queue.size());
+        assertEquals(0, new DeadLetterQueue(folder.getRoot(), dispatcher).size());
+        assertTrue(System.currentTimeMillis() - sent.get(0).getCreatedAt() < TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @Test
+    public void testReplayFollowsRate() throws Exception {
+        List<Long> sentAt = new CopyOnWriteArrayList<>();
+        queue = queue(notification -> {
+            sentAt.add(System.nanoTime());
+            return CompletableFuture.completedFuture(null);
+        });
+        for (int i = 0; i < 3; i++) {
+            queue.add(failed("job#" + i, Phase.COMPLETED, System.currentTimeMillis()));
+        }
+
+        // One every 100 ms.
+        queue.replay(queue.getEntries(null), 600);
+
+        await(() -> sentAt.size() == 3);
+        assertTrue(sentAt.get(2) - sentAt.get(0) >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testCancelledReplayLeavesEntries() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        queue = queue(notification -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+        for (int i = 0; i < 3; i++) {
+            queue.add(failed("job#" + i, Phase.COMPLETED, System.currentTimeMillis()));
+        }
+
+        // One a minute, only the first one goes right away.
+        DeadLetterQueue.Replay replay = queue.replay(queue.getEntries(null), 1);
+        await(() -> replay.getDispatched() == 1);
+        replay.cancel();
+
+        assertTrue(replay.isDone());
+        assertEquals(1, attempts.get());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testNewReplayCancelsRunningOne() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        queue = queue(notification -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+        for (int i = 0; i < 3; i++) {
+            queue.add(failed("job#" + i, Phase.COMPLETED, System.currentTimeMillis()));
+        }
+
+        DeadLetterQueue.Replay first = queue.replay(queue.getEntries(null), 1);
+        await(() -> first.getDispatched() == 1);
+        DeadLetterQueue.Replay second = queue.replay(queue.getEntries(null), 0);
+
+        assertTrue(first.isCancelled());
+        assertFalse(second.isCancelled());
+        await(() -> attempts.get() == 3 && second.getDispatched() == 2);
+        assertEquals(0, queue.size());
+    }
+
+    private DeadLetterQueue queue(Function<Notification, CompletableFuture<Void>> transport) throws IOException {
+        dispatcher = new NotificationDispatcher(
+                2,
+                Executors.defaultThreadFactory(),
+                false,
+                0,
+                new RetryPolicy(10, 10, 60000),
+                transport,
+                () -> null,
+                () -> queue);
+        return new DeadLetterQueue(folder.getRoot(), dispatcher);
+    }
+
+    private static Notification failed(String runId, Phase phase, long createdAt) {
+        Endpoint endpoint = new Endpoint(new UrlInfo(UrlType.PUBLIC, "http://dead.example"));
+        endpoint.setRetries(1);
+        Notification notification = new Notification(
+                runId,
+                phase,
+                endpoint,
+                "http://dead.example",
+                "url 'http://dead.example'",
+                "{}".getBytes(StandardCharsets.UTF_8),
+                null,
+                createdAt);
+        notification.setLastError("java.io.IOException: refused");
+        return notification;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,33 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import org.junit.Test;
+
+public class DnsCacheTest {
+
+    @Test
+    public void testAddressesAreCached() throws Exception {
+        List<InetAddress> addresses = DnsCache.resolve("127.0.0.1");
+
+        assertEquals(List.of(InetAddress.getByName("127.0.0.1")), addresses);
+        assertSame(addresses, DnsCache.resolve("127.0.0.1"));
+    }
+
+    @Test
+    public void testFailedLookupsAreCached() {
+        for (int i = 0; i < 2; i++) {
+            try {
+                DnsCache.resolve("unknown.invalid");
+                fail("Unknown host resolved");
+            } catch (UnknownHostException e) {
+                assertEquals("unknown.invalid", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonPrimitive;
+import com.thoughtworks.xstream.security.ForbiddenClassException;
+import com.tikal.hudson.plugins.notification.model.BuildState;
+import com.tikal.hudson.plugins.notification.model.JobState;
+import com.tikal.hudson.plugins.notification.model.ScmState;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class FormatTest {
+
+    @Test
+    public void testBinaryFormatsHaveJsonFields() throws IOException {
+        JobState jobState = new JobState();
+        jobState.setName("job");
+
+        // {"name": "job"}
+        assertArrayEquals(
+                bytes(0xA1, 0x64, 'n', 'a', 'm', 'e', 0x63, 'j', 'o', 'b'), Format.CBOR.serialize(jobState));
+        assertArrayEquals(
+                bytes(0x81, 0xA4, 'n', 'a', 'm', 'e', 0xA3, 'j', 'o', 'b'), Format.MESSAGE_PACK.serialize(jobState));
+    }
+
+    @Test
+    public void testIntegersTakeFewestBytes() throws IOException {
+        assertArrayEquals(bytes(0x17), encode(BinaryEncoding.CBOR, 23));
+        assertArrayEquals(bytes(0x18, 0x18), encode(BinaryEncoding.CBOR, 24));
+        assertArrayEquals(bytes(0x19, 0x01, 0xF4), encode(BinaryEncoding.CBOR, 500));
+        assertArrayEquals(bytes(0x39, 0x01, 0xF3), encode(BinaryEncoding.CBOR, -500));
+        assertArrayEquals(
+                bytes(0x1B, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00), encode(BinaryEncoding.CBOR, 1L << 40));
+
+        assertArrayEquals(bytes(0x7F), encode(BinaryEncoding.MESSAGE_PACK, 127));
+        assertArrayEquals(bytes(0xE0), encode(BinaryEncoding.MESSAGE_PACK, -32));
+        assertArrayEquals(bytes(0xCC, 0x80), encode(BinaryEncoding.MESSAGE_PACK, 128));
+        assertArrayEquals(bytes(0xCD, 0x01, 0xF4), encode(BinaryEncoding.MESSAGE_PACK, 500));
+        assertArrayEquals(bytes(0xD1, 0xFE, 0x0C), encode(BinaryEncoding.MESSAGE_PACK, -500));
+    }
+
+    @Test
+    public void testBinaryBatchIsArray() {
+        byte[] first = bytes(0xA0);
+        byte[] second = bytes(0x80);
+
+        assertArrayEquals(bytes(0x82, 0xA0, 0x80), Format.CBOR.serialize(List.of(first, second)));
+        assertArrayEquals(bytes(0x92, 0xA0, 0x80), Format.MESSAGE_PACK.serialize(List.of(first, second)));
+    }
+
+    @Test
+    public void testLargeLogIsSerializedToExactSize() throws IOException {
+        BuildState build = new BuildState();
+        build.setLog(new StringBuilder("\u00e9\"line\"\n".repeat(Format.EXACT_SIZE_LOG_LENGTH / 8 + 1)));
+        JobState jobState = new JobState();
+        jobState.setName("job");
+        jobState.setBuild(build);
+
+        byte[] payload = Format.JSON.serialize(jobState);
+        assertTrue(new String(payload, StandardCharsets.UTF_8).contains("\u00e9\\\"line\\\"\\n"));
+        assertEquals('}', payload[payload.length - 1]);
+    }
+
+    @Test
+    public void testContentTypes() {
+        assertTrue(Format.JSON.getContentType().startsWith("application/json"));
+        assertTrue(Format.CBOR.isBinary());
+        assertTrue(Format.MESSAGE_PACK.getContentType().startsWith("application/msgpack"));
+    }
+
+    @Test
+    public void testXmlRoundTripsJobState() throws IOException {
+        JobState jobState = new JobState();
+        jobState.setName("job");
+        BuildState build = new BuildState();
+        build.setNumber(42);
+        build.setPhase(Phase.COMPLETED);
+        build.setParameters(Map.of("BRANCH", "main"));
+        build.setLog(new StringBuilder("Started\nFinished: SUCCESS"));
+        ScmState scm = new ScmState();
+        scm.setCulprits(new ArrayList<>(List.of("alice")));
+        build.setScm(scm);
+        jobState.setBuild(build);
+
+        String xml = new String(Format.XML.serialize(jobState), StandardCharsets.UTF_8);
+
+        assertTrue(xml.startsWith("<job>"));
+        JobState read = (JobState) Format.XSTREAM.fromXML(xml);
+        assertEquals("job", read.getName());
+        assertEquals(42, read.getBuild().getNumber());
+        assertEquals(Phase.COMPLETED, read.getBuild().getPhase());
+        assertEquals(Map.of("BRANCH", "main"), read.getBuild().getParameters());
+        assertEquals("Started\nFinished: SUCCESS", read.getBuild().getLog().toString());
+        assertEquals(List.of("alice"), read.getBuild().getScm().getCulprits());
+    }
+
+    @Test(expected = ForbiddenClassException.class)
+    public void testXmlReadsNoOtherType() {
+        Format.XSTREAM.fromXML("<java.lang.ProcessBuilder/>");
+    }
+
+    private static byte[] encode(BinaryEncoding encoding, long value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoding.write(out, new JsonPrimitive(value));
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,134 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class NotificationBacklogTest {
+
+    // Spilled notifications hold the endpoint and the encrypted URL, which need Jenkins.
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Endpoint endpoint = new Endpoint(new UrlInfo(UrlType.PUBLIC, "http://localhost"));
+
+    @Test
+    public void testDropOldestShedsWaitingNotifications() {
+        NotificationBacklog backlog = backlog(NotificationBacklog.OverflowPolicy.DROP_OLDEST, 2, 1000);
+        Notification queued = notification(Phase.QUEUED, "{}");
+        Notification started = notification(Phase.STARTED, "{}");
+        Notification completed = notification(Phase.COMPLETED, "{}");
+
+        assertEquals(List.of(queued, started), backlog.admit(List.of(queued, started)));
+        assertTrue(backlog.start(started));
+        assertEquals(List.of(completed), backlog.admit(List.of(completed)));
+
+        assertFalse(backlog.start(queued));
+        assertEquals(2, backlog.getEvents());
+        assertEquals(1L, (long) backlog.getShedCounts().get(Phase.QUEUED));
+    }
+
+    @Test
+    public void testFinalizedIsNeverShed() {
+        NotificationBacklog backlog = backlog(NotificationBacklog.OverflowPolicy.SAMPLE, 1, 1000);
+        Notification first = notification(Phase.FINALIZED, "{}");
+        Notification second = notification(Phase.FINALIZED, "{}");
+        Notification third = notification(Phase.COMPLETED, "{}");
+
+        assertEquals(List.of(first, second), backlog.admit(List.of(first, second)));
+        assertTrue(backlog.admit(List.of(third)).isEmpty());
+
+        assertEquals(2, backlog.getEvents());
+        assertEquals(1L, (long) backlog.getShedCounts().get(Phase.COMPLETED));
+    }
+
+    @Test
+    public void testBlockWaitsForRoom() throws Exception {
+        NotificationBacklog backlog = backlog(NotificationBacklog.OverflowPolicy.BLOCK, 10, 4);
+        Notification first = notification(Phase.STARTED, "1234");
+        Notification second = notification(Phase.COMPLETED, "5678");
+        backlog.admit(List.of(first));
+
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backlog.release(first);
+        });
+        releaser.start();
+        assertEquals(List.of(second), backlog.admit(List.of(second)));
+        releaser.join();
+
+        assertTrue(backlog.admit(List.of(notification(Phase.COMPLETED, "9"))).isEmpty());
+        assertEquals(4L, backlog.getBytes());
+    }
+
+    @Test
+    public void testSpillReadsBackInOrderOnExecutor() {
+        List<Notification> resubmitted = new CopyOnWriteArrayList<>();
+        List<Runnable> unspills = new CopyOnWriteArrayList<>();
+        File directory = new File(folder.getRoot(), "spill");
+        NotificationBacklog backlog = new NotificationBacklog(
+                1,
+                1000,
+                NotificationBacklog.OverflowPolicy.SPILL,
+                500,
+                () -> directory,
+                resubmitted::add,
+                unspills::add);
+        Notification first = notification(Phase.STARTED, "1");
+        Notification second = notification(Phase.COMPLETED, "2");
+        Notification third = notification(Phase.FINALIZED, "3");
+
+        assertEquals(List.of(first), backlog.admit(List.of(first)));
+        assertTrue(backlog.admit(List.of(second, third)).isEmpty());
+        assertEquals(2, backlog.getSpilled());
+        assertEquals(2, directory.list().length);
+
+        // Releasing only hands the reading back over, there is room for one.
+        backlog.release(first);
+        assertTrue(resubmitted.isEmpty());
+        assertEquals(1, unspills.size());
+        unspills.remove(0).run();
+        assertEquals(1, resubmitted.size());
+        assertEquals("2", new String(resubmitted.get(0).getPayload(), StandardCharsets.UTF_8));
+
+        backlog.release(resubmitted.get(0));
+        unspills.remove(0).run();
+        assertEquals("3", new String(resubmitted.get(1).getPayload(), StandardCharsets.UTF_8));
+        assertEquals(0, backlog.getSpilled());
+        assertEquals(0, directory.list().length);
+        assertTrue(unspills.isEmpty());
+    }
+
+    private static NotificationBacklog backlog(
+            NotificationBacklog.OverflowPolicy policy, int maxEvents, long maxBytes) {
+        return new NotificationBacklog(maxEvents, maxBytes, policy, 500, () -> null, notification -> {}, Runnable::run);
+    }
+
+    private Notification notification(Phase phase, String payload) {
+        return new Notification(
+                "job#1",
+                phase,
+                endpoint,
+                "http://localhost",
+                "url 'http://localhost'",
+                payload.getBytes(StandardCharsets.UTF_8),
+                null,
+                System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,104 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class NotificationBatcherTest {
+
+    private final HashedWheelTimer timer = new HashedWheelTimer("test", 10, TimeUnit.MILLISECONDS, 64);
+
+    private final List<Notification> sent = new CopyOnWriteArrayList<>();
+
+    private final NotificationBatcher batcher = new NotificationBatcher(timer, notification -> {
+        sent.add(notification);
+        return CompletableFuture.completedFuture(true);
+    });
+
+    @After
+    public void stopTimer() {
+        timer.stop();
+    }
+
+    @Test
+    public void testSendsFullBatch() throws Exception {
+        Endpoint endpoint = endpoint(Format.JSON, 3, 60000);
+
+        CompletableFuture<Boolean> first = batcher.add(notification(endpoint, "{\"n\":1}"));
+        CompletableFuture<Boolean> second = batcher.add(notification(endpoint, "{\"n\":2}"));
+        assertTrue(sent.isEmpty());
+        CompletableFuture<Boolean> third = batcher.add(notification(endpoint, "{\"n\":3}"));
+
+        assertEquals(1, sent.size());
+        assertEquals("[{\"n\":1},{\"n\":2},{\"n\":3}]", payload(sent.get(0)));
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        assertTrue(second.get(5, TimeUnit.SECONDS));
+        assertTrue(third.get(5, TimeUnit.SECONDS));
+        assertEquals(0, batcher.getPendingCount());
+    }
+
+    @Test
+    public void testSendsPartialBatchAfterDelay() throws Exception {
+        Endpoint endpoint = endpoint(Format.JSON, 10, 50);
+
+        batcher.add(notification(endpoint, "{\"n\":1}"));
+        CompletableFuture<Boolean> second = batcher.add(notification(endpoint, "{\"n\":2}"));
+
+        assertTrue(second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, sent.size());
+        assertEquals("[{\"n\":1},{\"n\":2}]", payload(sent.get(0)));
+    }
+
+    @Test
+    public void testSendsXmlList() {
+        Endpoint endpoint = endpoint(Format.XML, 10, 60000);
+
+        batcher.add(notification(endpoint, "<job/>"));
+        batcher.add(notification(endpoint, "<job/>"));
+        batcher.flushAll();
+
+        assertEquals(1, sent.size());
+        assertEquals("<list>\n<job/>\n<job/>\n</list>", payload(sent.get(0)));
+    }
+
+    @Test
+    public void testBatchesAcrossEndpointInstances() {
+        // Saving the job or reading notifications back from disk makes new Endpoint instances.
+        batcher.add(notification(endpoint(Format.JSON, 2, 60000), "{\"n\":1}"));
+        batcher.add(notification(endpoint(Format.JSON, 2, 60000), "{\"n\":2}"));
+
+        assertEquals(1, sent.size());
+        assertEquals("[{\"n\":1},{\"n\":2}]", payload(sent.get(0)));
+    }
+
+    private static Endpoint endpoint(Format format, int batchSize, int batchDelay) {
+        Endpoint endpoint = new Endpoint(new UrlInfo(UrlType.PUBLIC, "http://localhost"));
+        endpoint.setFormat(format);
+        endpoint.setBatchSize(batchSize);
+        endpoint.setBatchDelay(batchDelay);
+        return endpoint;
+    }
+
+    private static Notification notification(Endpoint endpoint, String payload) {
+        return new Notification(
+                "job#1",
+                Phase.COMPLETED,
+                endpoint,
+                "http://localhost",
+                "url 'http://localhost'",
+                payload.getBytes(StandardCharsets.UTF_8),
+                null,
+                System.currentTimeMillis());
+    }
+
+    private static String payload(Notification notification) {
+        return new String(notification.getPayload(), StandardCharsets.UTF_8);
+    }
+}
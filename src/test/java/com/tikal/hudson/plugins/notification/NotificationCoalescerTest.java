@@ -0,0 +1,86 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class NotificationCoalescerTest {
+
+    private final NotificationCoalescer coalescer = new NotificationCoalescer();
+
+    @Test
+    public void testLaterPhaseSupersedesPendingOnes() {
+        Endpoint endpoint = endpoint(true);
+        Notification queued = notification(endpoint, "job#1", Phase.QUEUED);
+        Notification started = notification(endpoint, "job#1", Phase.STARTED);
+        Notification completed = notification(endpoint, "job#1", Phase.COMPLETED);
+        coalescer.register(queued);
+        coalescer.register(started);
+        coalescer.register(completed);
+
+        assertSame(completed, coalescer.getSupersedingNotification(queued));
+        assertSame(completed, coalescer.getSupersedingNotification(started));
+        assertNull(coalescer.getSupersedingNotification(completed));
+
+        coalescer.remove(completed);
+        assertNull(coalescer.getSupersedingNotification(started));
+    }
+
+    @Test
+    public void testKeepsMustDeliverPhases() {
+        Endpoint endpoint = endpoint(true);
+        endpoint.setMustDeliver("STARTED, FINALIZED");
+        Notification started = notification(endpoint, "job#1", Phase.STARTED);
+        Notification completed = notification(endpoint, "job#1", Phase.COMPLETED);
+        Notification finalized = notification(endpoint, "job#1", Phase.FINALIZED);
+        coalescer.register(started);
+        coalescer.register(completed);
+        coalescer.register(finalized);
+
+        assertNull(coalescer.getSupersedingNotification(started));
+        assertSame(finalized, coalescer.getSupersedingNotification(completed));
+    }
+
+    @Test
+    public void testOnlyCoalescesSameRunAndEndpoint() {
+        Endpoint coalescing = endpoint(true);
+        Notification first = notification(coalescing, "job#1", Phase.STARTED);
+        coalescer.register(first);
+        coalescer.register(notification(coalescing, "job#2", Phase.COMPLETED));
+        coalescer.register(notification(endpoint(true, "http://other"), "job#1", Phase.COMPLETED));
+        assertNull(coalescer.getSupersedingNotification(first));
+
+        Endpoint regular = endpoint(false);
+        Notification started = notification(regular, "job#1", Phase.STARTED);
+        coalescer.register(started);
+        coalescer.register(notification(regular, "job#1", Phase.COMPLETED));
+        assertNull(coalescer.getSupersedingNotification(started));
+    }
+
+    @Test
+    public void testCoalescesAcrossEndpointInstances() {
+        // Saving the job or reading notifications back from disk makes new Endpoint instances.
+        Notification started = notification(endpoint(true), "folder/job#1", Phase.STARTED);
+        Notification completed = notification(endpoint(true), "folder/job#1", Phase.COMPLETED);
+        coalescer.register(started);
+        coalescer.register(completed);
+
+        assertSame(completed, coalescer.getSupersedingNotification(started));
+    }
+
+    private static Endpoint endpoint(boolean coalescing) {
+        return endpoint(coalescing, "http://localhost");
+    }
+
+    private static Endpoint endpoint(boolean coalescing, String url) {
+        Endpoint endpoint = new Endpoint(new UrlInfo(UrlType.PUBLIC, url));
+        endpoint.setCoalescing(coalescing);
+        return endpoint;
+    }
+
+    private static Notification notification(Endpoint endpoint, String runId, Phase phase) {
+        String url = endpoint.getUrlInfo().getUrlOrId();
+        return new Notification(runId, phase, endpoint, url, "url '" + url + "'", new byte[0], null, 0);
+    }
+}
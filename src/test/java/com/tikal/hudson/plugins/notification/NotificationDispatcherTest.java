@@ -0,0 +1,269 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.TaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.After;
+import org.junit.Test;
+
+public class NotificationDispatcherTest {
+
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+
+    private NotificationDispatcher dispatcher;
+
+    @After
+    public void stopDispatcher() throws InterruptedException {
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void testDeliversPhasesOfRunInOrder() throws Exception {
+        CountDownLatch done = new CountDownLatch(8);
+        dispatcher = dispatcher(false, 0, notification -> {
+            sent.add(payload(notification));
+            done.countDown();
+            // Receivers answering in random order must not reorder the phases.
+            return CompletableFuture.runAsync(
+                    () -> {},
+                    CompletableFuture.delayedExecutor(
+                            ThreadLocalRandom.current().nextInt(20), TimeUnit.MILLISECONDS));
+        });
+        Endpoint first = endpoint("http://ordered-1.example");
+        Endpoint second = endpoint("http://ordered-2.example");
+
+        for (Phase phase : List.of(Phase.QUEUED, Phase.STARTED, Phase.COMPLETED, Phase.FINALIZED)) {
+            dispatcher.dispatch(
+                    "job#1",
+                    List.of(
+                            notification("job#1", phase, first, phase + " 1"),
+                            notification("job#1", phase, second, phase + " 2")));
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(
+                List.of(
+                        "QUEUED 1",
+                        "QUEUED 2",
+                        "STARTED 1",
+                        "STARTED 2",
+                        "COMPLETED 1",
+                        "COMPLETED 2",
+                        "FINALIZED 1",
+                        "FINALIZED 2"),
+                sent);
+    }
+
+    @Test
+    public void testNextPhaseWaitsAtMostPhaseDeadline() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        dispatcher = dispatcher(false, 100, notification -> {
+            sent.add(payload(notification));
+            done.countDown();
+            // The first phase never gets an answer.
+            return notification.getPhase() == Phase.STARTED
+                    ? new CompletableFuture<>()
+                    : CompletableFuture.completedFuture(null);
+        });
+        Endpoint endpoint = endpoint("http://deadline.example");
+
+        dispatcher.dispatch("job#2", List.of(notification("job#2", Phase.STARTED, endpoint, "started")));
+        dispatcher.dispatch("job#2", List.of(notification("job#2", Phase.COMPLETED, endpoint, "completed")));
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of("started", "completed"), sent);
+    }
+
+    @Test
+    public void testRetriesFailedDelivery() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        dispatcher = dispatcher(false, 0, notification -> attempts.incrementAndGet() <= 2
+                ? CompletableFuture.failedFuture(new IOException("refused"))
+                : CompletableFuture.completedFuture(null));
+        Endpoint endpoint = endpoint("http://retried.example");
+        endpoint.setRetries(2);
+        Notification notification = notification("job#3", Phase.COMPLETED, endpoint, "completed");
+
+        assertTrue(dispatcher.deliver(notification).get(10, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+        assertTrue(notification.getLastError().contains("refused"));
+    }
+
+    @Test
+    public void testGivesUpWithoutRetriesLeft() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        dispatcher = dispatcher(false, 0, notification -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.failedFuture(new IOException("refused"));
+        });
+        Endpoint endpoint = endpoint("http://given-up.example");
+        endpoint.setRetries(1);
+
+        assertFalse(dispatcher
+                .deliver(notification("job#4", Phase.COMPLETED, endpoint, "completed"))
+                .get(10, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void testReportsFailedAttemptsOutsideBuildLog() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        dispatcher = dispatcher(false, 0, notification -> {
+            done.countDown();
+            return done.getCount() > 0
+                    ? CompletableFuture.failedFuture(new IOException("refused"))
+                    : CompletableFuture.completedFuture(null);
+        });
+        Endpoint endpoint = endpoint("http://reported.example");
+        endpoint.setRetries(1);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream logger = new PrintStream(log, true, StandardCharsets.UTF_8);
+        TaskListener listener = new TaskListener() {
+            @Override
+            public PrintStream getLogger() {
+                return logger;
+            }
+        };
+
+        dispatcher.dispatch(
+                "job#8",
+                List.of(new Notification(
+                        "job#8",
+                        Phase.COMPLETED,
+                        endpoint,
+                        endpoint.getUrlInfo().getUrlOrId(),
+                        "url '" + endpoint.getUrlInfo().getUrlOrId() + "'",
+                        "completed".getBytes(StandardCharsets.UTF_8),
+                        listener,
+                        System.currentTimeMillis())));
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // The build may be over by the time deliveries fail, its log is left alone.
+        assertEquals("", log.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testGivesUpOnRejectedPayload() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        dispatcher = dispatcher(false, 0, notification -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.failedFuture(new IllegalArgumentException("can't be sent"));
+        });
+        Endpoint endpoint = endpoint("http://rejected.example");
+        endpoint.setRetries(3);
+
+        assertFalse(dispatcher
+                .deliver(notification("job#7", Phase.COMPLETED, endpoint, "completed"))
+                .get(10, TimeUnit.SECONDS));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testParallelDeliversEndpointsOfPhaseConcurrently() throws Exception {
+        List<CompletableFuture<Void>> pending = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(3);
+        CountDownLatch finalized = new CountDownLatch(1);
+        dispatcher = dispatcher(true, 0, notification -> {
+            sent.add(payload(notification));
+            if (notification.getPhase() == Phase.FINALIZED) {
+                finalized.countDown();
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> answer = new CompletableFuture<>();
+            pending.add(answer);
+            started.countDown();
+            return answer;
+        });
+        List<Notification> notifications = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            Endpoint endpoint = endpoint("http://parallel-" + i + ".example");
+            notifications.add(notification("job#5", Phase.COMPLETED, endpoint, "completed " + i));
+        }
+
+        dispatcher.dispatch("job#5", notifications);
+        dispatcher.dispatch(
+                "job#5",
+                List.of(notification("job#5", Phase.FINALIZED, endpoint("http://parallel-1.example"), "finalized")));
+
+        // All endpoints are attempted although none answered yet, the next phase still waits for them.
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(3, sent.size());
+        assertFalse(sent.contains("finalized"));
+        pending.forEach(answer -> answer.complete(null));
+        assertTrue(finalized.await(10, TimeUnit.SECONDS));
+        assertEquals("finalized", sent.get(3));
+    }
+
+    @Test
+    public void testRateLimitOutlivesEndpointInstance() throws Exception {
+        List<Long> sentAt = new CopyOnWriteArrayList<>();
+        dispatcher = dispatcher(false, 0, notification -> {
+            sentAt.add(System.nanoTime());
+            return CompletableFuture.completedFuture(null);
+        });
+        // Saving the job or reading notifications back from disk makes new Endpoint instances.
+        Endpoint before = endpoint("http://limited.example");
+        before.setRateLimit(60);
+        Endpoint after = endpoint("http://limited.example");
+        after.setRateLimit(60);
+
+        assertTrue(dispatcher
+                .deliver(notification("job#6", Phase.STARTED, before, "started"))
+                .get(10, TimeUnit.SECONDS));
+        assertTrue(dispatcher
+                .deliver(notification("job#6", Phase.COMPLETED, after, "completed"))
+                .get(10, TimeUnit.SECONDS));
+        assertTrue(sentAt.get(1) - sentAt.get(0) >= TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    private static NotificationDispatcher dispatcher(
+            boolean parallel, long phaseDeadline, Function<Notification, CompletableFuture<Void>> transport) {
+        return new NotificationDispatcher(
+                4,
+                Executors.defaultThreadFactory(),
+                parallel,
+                phaseDeadline,
+                new RetryPolicy(10, 10, 60000),
+                transport,
+                () -> null,
+                () -> null);
+    }
+
+    private static Endpoint endpoint(String url) {
+        return new Endpoint(new UrlInfo(UrlType.PUBLIC, url));
+    }
+
+    private static Notification notification(String runId, Phase phase, Endpoint endpoint, String payload) {
+        return new Notification(
+                runId,
+                phase,
+                endpoint,
+                endpoint.getUrlInfo().getUrlOrId(),
+                "url '" + endpoint.getUrlInfo().getUrlOrId() + "'",
+                payload.getBytes(StandardCharsets.UTF_8),
+                null,
+                System.currentTimeMillis());
+    }
+
+    private static String payload(Notification notification) {
+        return new String(notification.getPayload(), StandardCharsets.UTF_8);
+    }
+}
@@ -3,15 +3,17 @@ package com.tikal.hudson.plugins.notification;
 import static com.tikal.hudson.plugins.notification.UrlType.PUBLIC;
 import static com.tikal.hudson.plugins.notification.UrlType.SECRET;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Mockito.any;
-import static org.mockito.Mockito.anyBoolean;
-import static org.mockito.Mockito.anyInt;
-import static org.mockito.Mockito.anyString;
-import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.argThat;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.isA;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockStatic;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
@@ -25,10 +27,16 @@ import hudson.model.TaskListener;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import jenkins.model.Jenkins;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.junit.MockitoJUnitRunner;
@@ -220,7 +228,9 @@ public class PhaseTest {
 
             Protocol httpProtocolSpy = spy(Protocol.HTTP);
             when(endpoint.getProtocol()).thenReturn(httpProtocolSpy);
-            doNothing().when(httpProtocolSpy).send(anyString(), any(byte[].class), anyInt(), anyBoolean());
+            doReturn(CompletableFuture.completedFuture(null))
+                    .when(httpProtocolSpy)
+                    .sendAsync(any(Notification.class));
 
             Format jsonFormatSpy = spy(Format.JSON);
             JobState jobState = new JobState();
@@ -245,7 +255,7 @@ public class PhaseTest {
             Phase.STARTED.handle(run, listener, 1L);
 
             verify(logger).printf("Notifying endpoint with %s%n", "url 'expandedUrl'");
-            verify(httpProtocolSpy).send("expandedUrl", data, 42, false);
+            verify(httpProtocolSpy, timeout(5000)).sendAsync(argThat(sent("expandedUrl", data, 42)));
             verify(run).getPreviousCompletedBuild();
         }
     }
@@ -263,7 +273,9 @@ public class PhaseTest {
 
             Protocol httpProtocolSpy = spy(Protocol.HTTP);
             when(endpoint.getProtocol()).thenReturn(httpProtocolSpy);
-            doNothing().when(httpProtocolSpy).send(anyString(), any(byte[].class), anyInt(), anyBoolean());
+            doReturn(CompletableFuture.completedFuture(null))
+                    .when(httpProtocolSpy)
+                    .sendAsync(any(Notification.class));
 
             Format jsonFormatSpy = spy(Format.JSON);
             JobState jobState = new JobState();
@@ -287,8 +299,66 @@ public class PhaseTest {
             Phase.STARTED.handle(run, listener, 1L);
 
             verify(logger).printf("Notifying endpoint with %s%n", "credentials id 'credentialsId'");
-            verify(httpProtocolSpy).send("secretUrl", data, 42, false);
+            verify(httpProtocolSpy, timeout(5000)).sendAsync(argThat(sent("secretUrl", data, 42)));
             verify(run).getPreviousCompletedBuild();
         }
     }
+
+    @Test
+    public void testEndpointsWithSameOptionsShareSerialization() throws IOException, InterruptedException {
+        try (MockedStatic<Jenkins> jenkinsMockedStatic = mockStatic(Jenkins.class)) {
+            jenkinsMockedStatic.when(Jenkins::getInstanceOrNull).thenReturn(jenkins);
+            jenkinsMockedStatic.when(Jenkins::get).thenReturn(jenkins);
+
+            Protocol httpProtocolSpy = spy(Protocol.HTTP);
+            doReturn(CompletableFuture.completedFuture(null))
+                    .when(httpProtocolSpy)
+                    .sendAsync(any(Notification.class));
+
+            Format jsonFormatSpy = spy(Format.JSON);
+            doReturn("first".getBytes(), "second".getBytes()).when(jsonFormatSpy).serialize(isA(JobState.class));
+
+            // The first two endpoints only differ in their URL, the third one sends build notes on top.
+            Endpoint same = mock(Endpoint.class);
+            Endpoint notes = mock(Endpoint.class);
+            List<Endpoint> endpoints = List.of(endpoint, same, notes);
+            for (Endpoint target : endpoints) {
+                when(target.getUrlInfo()).thenReturn(urlInfo);
+                when(target.getBranch()).thenReturn(".*");
+                when(target.getProtocol()).thenReturn(httpProtocolSpy);
+                when(target.getFormat()).thenReturn(jsonFormatSpy);
+                when(target.getTimeout()).thenReturn(42);
+            }
+            when(notes.getBuildNotes()).thenReturn("Deployed");
+
+            when(run.getParent()).thenReturn(job);
+            when(job.getProperty(HudsonNotificationProperty.class)).thenReturn(property);
+            when(property.getEndpoints()).thenReturn(endpoints);
+            when(run.getEnvironment(listener)).thenReturn(environment);
+            when(urlInfo.getUrlOrId()).thenReturn("$someUrl");
+            when(urlInfo.getUrlType()).thenReturn(PUBLIC);
+            when(environment.expand("$someUrl")).thenReturn("expandedUrl");
+            when(listener.getLogger()).thenReturn(logger);
+
+            Phase.STARTED.handle(run, listener, 1L);
+
+            ArgumentCaptor<Notification> sent = ArgumentCaptor.forClass(Notification.class);
+            verify(httpProtocolSpy, timeout(5000).times(3)).sendAsync(sent.capture());
+            verify(jsonFormatSpy, times(2)).serialize(isA(JobState.class));
+            Map<Endpoint, byte[]> payloads = new HashMap<>();
+            for (Notification notification : sent.getAllValues()) {
+                payloads.put(notification.getEndpoint(), notification.getPayload());
+            }
+            assertSame(payloads.get(endpoint), payloads.get(same));
+            assertNotSame(payloads.get(endpoint), payloads.get(notes));
+            assertEquals("second", new String(payloads.get(notes)));
+        }
+    }
+
+    private static ArgumentMatcher<Notification> sent(String url, byte[] data, int timeout) {
+        return notification -> url.equals(notification.getUrl())
+                && Arrays.equals(data, notification.getPayload())
+                && timeout == notification.getTimeout()
+                && notification.getContentType().startsWith("application/json");
+    }
 }
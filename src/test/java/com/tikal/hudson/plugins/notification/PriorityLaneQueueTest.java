@@ -0,0 +1,76 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class PriorityLaneQueueTest {
+
+    private final PriorityLaneQueue queue = new PriorityLaneQueue();
+
+    @Test
+    public void testServesLanesByWeight() {
+        for (int i = 0; i < 20; i++) {
+            queue.offer(task(Priority.LOW));
+            queue.offer(task(Priority.NORMAL));
+            queue.offer(task(Priority.HIGH));
+        }
+
+        List<Priority> round = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            round.add(((PriorityLaneQueue.Task) queue.poll()).getPriority());
+        }
+        List<Priority> expected = new ArrayList<>();
+        expected.addAll(List.of(Priority.HIGH, Priority.HIGH, Priority.HIGH, Priority.HIGH));
+        expected.addAll(List.of(Priority.HIGH, Priority.HIGH, Priority.HIGH, Priority.HIGH));
+        expected.addAll(List.of(Priority.NORMAL, Priority.NORMAL, Priority.NORMAL, Priority.LOW));
+        assertEquals(expected, round);
+        assertEquals(48, queue.size());
+    }
+
+    @Test
+    public void testLowerLanesTakeOverWhenHigherAreEmpty() throws InterruptedException {
+        queue.offer(task(Priority.LOW));
+        queue.offer(task(Priority.LOW));
+        Runnable other = () -> {};
+        queue.offer(other);
+
+        assertEquals(other, queue.take());
+        assertEquals(Priority.LOW, ((PriorityLaneQueue.Task) queue.take()).getPriority());
+        assertEquals(Priority.LOW, ((PriorityLaneQueue.Task) queue.poll(1, TimeUnit.SECONDS)).getPriority());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testKeepsStatsPerLane() {
+        queue.offer(task(Priority.HIGH));
+        queue.offer(task(Priority.LOW));
+        queue.offer(task(Priority.LOW));
+        queue.poll();
+
+        Map<Priority, PriorityLaneQueue.LaneStats> stats = queue.getStats();
+        assertEquals(0, stats.get(Priority.HIGH).getDepth());
+        assertEquals(1, stats.get(Priority.HIGH).getCompleted());
+        assertEquals(2, stats.get(Priority.LOW).getDepth());
+        assertEquals(0, stats.get(Priority.LOW).getCompleted());
+    }
+
+    @Test
+    public void testWaitIncludesTimeBeforeBeingQueued() {
+        long createdAt = System.nanoTime() - TimeUnit.SECONDS.toNanos(2);
+        queue.offer(new PriorityLaneQueue.Task(Priority.NORMAL, () -> {}, createdAt));
+        queue.poll();
+
+        assertTrue(queue.getStats().get(Priority.NORMAL).getMaxWait() >= 2000);
+    }
+
+    private static Runnable task(Priority priority) {
+        return new PriorityLaneQueue.Task(priority, () -> {});
+    }
+}
@@ -27,19 +27,33 @@ import com.google.common.base.MoreObjects;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPInputStream;
 import junit.framework.TestCase;
 
 /**
@@ -155,6 +169,84 @@ public class ProtocolTest extends TestCase {
         }
     }
 
+    static class PortRecordingHandler implements HttpHandler {
+        private final BlockingQueue<Integer> ports;
+
+        PortRecordingHandler(BlockingQueue<Integer> ports) {
+            this.ports = ports;
+        }
+
+        @Override
+        public void handle(HttpExchange he) throws IOException {
+            he.getRequestBody().readAllBytes();
+            ports.add(he.getRemoteAddress().getPort());
+            byte[] body = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+            he.getResponseBody().write(body);
+            he.close();
+        }
+    }
+
+    static class EncodingHandler implements HttpHandler {
+        private final BlockingQueue<String> encodings;
+        private final boolean rejectEncoded;
+
+        EncodingHandler(BlockingQueue<String> encodings, boolean rejectEncoded) {
+            this.encodings = encodings;
+            this.rejectEncoded = rejectEncoded;
+        }
+
+        @Override
+        public void handle(HttpExchange he) throws IOException {
+            String encoding = he.getRequestHeaders().getFirst("Content-Encoding");
+            InputStream body = he.getRequestBody();
+            if ("gzip".equals(encoding)) {
+                body = new GZIPInputStream(body);
+            }
+            encodings.add(encoding + ":" + new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            he.sendResponseHeaders(rejectEncoded && encoding != null ? 415 : HttpURLConnection.HTTP_OK, -1);
+            he.close();
+        }
+    }
+
+    static class ContentTypeHandler implements HttpHandler {
+        private final BlockingQueue<String> contentTypes;
+
+        ContentTypeHandler(BlockingQueue<String> contentTypes) {
+            this.contentTypes = contentTypes;
+        }
+
+        @Override
+        public void handle(HttpExchange he) throws IOException {
+            he.getRequestBody().readAllBytes();
+            contentTypes.add(he.getRequestHeaders().getFirst("Content-Type"));
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+            he.close();
+        }
+    }
+
+    static class StatusHandler implements HttpHandler {
+        private final int status;
+        private final String retryAfter;
+
+        StatusHandler(int status, String retryAfter) {
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+
+        @Override
+        public void handle(HttpExchange he) throws IOException {
+            he.getRequestBody().readAllBytes();
+            if (retryAfter != null) {
+                he.getResponseHeaders().set("Retry-After", retryAfter);
+            }
+            byte[] body = "{\"error\":\"busy\"}".getBytes(StandardCharsets.UTF_8);
+            he.sendResponseHeaders(status, body.length);
+            he.getResponseBody().write(body);
+            he.close();
+        }
+    }
+
     private List<HttpServer> servers;
 
     interface UrlFactory {
@@ -249,4 +341,350 @@ public class ProtocolTest extends TestCase {
         assertEquals(new Request(redirectUri, "POST", "RedirectMe"), requests.take());
         assertTrue(requests.isEmpty());
     }
+
+    public void testHttpPostReusesConnection() throws Exception {
+        BlockingQueue<Integer> ports = new LinkedBlockingQueue<>();
+
+        UrlFactory urlFactory = startServer(new PortRecordingHandler(ports), "/realpath");
+
+        String uri = urlFactory.getUrl("/realpath");
+        for (int i = 0; i < 3; i++) {
+            Protocol.HTTP.send(uri, "Hello".getBytes(), 30000, true);
+        }
+
+        int port = ports.take();
+        assertEquals(port, (int) ports.take());
+        assertEquals(port, (int) ports.take());
+    }
+
+    public void testHttpPostStopsRedirectLoop() throws Exception {
+        BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+
+        UrlFactory urlFactory = startServer(new RedirectHandler(requests, "/loop"), "/loop");
+
+        String uri = urlFactory.getUrl("/loop");
+        try {
+            Protocol.HTTP.sendAsync(notification(Protocol.HTTP, uri, "Loop", null)).get();
+            fail("Redirect loop not detected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("Too many redirects"));
+        }
+        assertEquals(HttpTransport.MAX_REDIRECTS + 1, requests.size());
+    }
+
+    public void testHttpPostFailsOnErrorStatus() throws Exception {
+        UrlFactory urlFactory = startServer(new StatusHandler(429, "120"), "/busy");
+
+        try {
+            Protocol.HTTP.send(urlFactory.getUrl("/busy"), "Hello".getBytes(), 30000, true);
+            fail("429 taken as delivered");
+        } catch (HttpStatusException e) {
+            assertEquals(429, e.getStatus());
+            assertTrue(e.isRetryable());
+            assertEquals(120000, e.getRetryAfter());
+        }
+    }
+
+    public void testHttpPostFailsForGoodOnClientError() throws Exception {
+        UrlFactory urlFactory = startServer(new StatusHandler(400, null), "/bad");
+
+        try {
+            Protocol.HTTP.send(urlFactory.getUrl("/bad"), "Hello".getBytes(), 30000, true);
+            fail("400 taken as delivered");
+        } catch (HttpStatusException e) {
+            assertFalse(e.isRetryable());
+            assertEquals(-1, e.getRetryAfter());
+        }
+    }
+
+    public void testRetryAfterDate() {
+        long now = 1445412480000L;
+        assertEquals(30000, HttpStatusException.parseRetryAfter("Wed, 21 Oct 2015 07:28:30 GMT", now));
+        assertEquals(0, HttpStatusException.parseRetryAfter("Wed, 21 Oct 2015 07:27:00 GMT", now));
+        assertEquals(-1, HttpStatusException.parseRetryAfter("soon", now));
+    }
+
+    public void testHttpPostCompressesPayload() throws Exception {
+        BlockingQueue<String> encodings = new LinkedBlockingQueue<>();
+
+        UrlFactory urlFactory = startServer(new EncodingHandler(encodings, false), "/realpath");
+
+        String uri = urlFactory.getUrl("/realpath");
+        Protocol.HTTP.sendAsync(notification(Protocol.HTTP, uri, "Hello", Compression.GZIP)).get();
+
+        assertEquals("gzip:Hello", encodings.take());
+    }
+
+    public void testHttpPostFallsBackToUncompressed() throws Exception {
+        BlockingQueue<String> encodings = new LinkedBlockingQueue<>();
+
+        UrlFactory urlFactory = startServer(new EncodingHandler(encodings, true), "/realpath");
+
+        String uri = urlFactory.getUrl("/realpath");
+        Protocol.HTTP.sendAsync(notification(Protocol.HTTP, uri, "Hello", Compression.GZIP)).get();
+        Protocol.HTTP.sendAsync(notification(Protocol.HTTP, uri, "Again", Compression.GZIP)).get();
+
+        assertEquals("gzip:Hello", encodings.take());
+        assertEquals("null:Hello", encodings.take());
+        assertEquals("null:Again", encodings.take());
+        assertTrue(encodings.isEmpty());
+    }
+
+    public void testHttpPostSendsContentTypeOfFormat() throws Exception {
+        BlockingQueue<String> contentTypes = new LinkedBlockingQueue<>();
+
+        UrlFactory urlFactory = startServer(new ContentTypeHandler(contentTypes), "/realpath");
+
+        String uri = urlFactory.getUrl("/realpath");
+        for (Format format : List.of(Format.JSON, Format.XML, Format.CBOR, Format.MESSAGE_PACK)) {
+            Endpoint endpoint = new Endpoint(new UrlInfo(UrlType.PUBLIC, uri));
+            endpoint.setFormat(format);
+            Protocol.HTTP.sendAsync(notification(endpoint, "Hello")).get();
+
+            assertEquals(format.getContentType(), contentTypes.take());
+        }
+    }
+
+    public void testTcpSendsConcurrently() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            String url = "localhost:" + server.getLocalPort();
+            List<CompletableFuture<Void>> sent = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                sent.add(Protocol.TCP.sendAsync(notification(Protocol.TCP, url, "Hello " + i, null)));
+            }
+
+            Set<String> received = new HashSet<>();
+            for (int i = 0; i < 20; i++) {
+                try (Socket socket = server.accept()) {
+                    received.add(new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+            for (CompletableFuture<Void> future : sent) {
+                future.get();
+            }
+            assertEquals(20, received.size());
+            assertTrue(received.contains("Hello 19"));
+        }
+    }
+
+    public void testTcpUnframedCompressionFramesEveryPayload() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            String url = "localhost:" + server.getLocalPort();
+            Endpoint endpoint = new Endpoint(new UrlInfo(UrlType.PUBLIC, url));
+            endpoint.setProtocol(Protocol.TCP);
+            endpoint.setCompression(Compression.GZIP);
+            // Below and above the default threshold.
+            Notification small = notification(endpoint, "Hi");
+            Notification large = notification(endpoint, "Hello".repeat(300));
+
+            for (Notification notification : List.of(small, large)) {
+                CompletableFuture<Void> sent = Protocol.TCP.sendAsync(notification);
+                try (Socket socket = server.accept()) {
+                    DataInputStream input = new DataInputStream(socket.getInputStream());
+                    byte[] frame = new byte[input.readInt()];
+                    input.readFully(frame);
+                    assertEquals(-1, input.read());
+                    InputStream payload = new ByteArrayInputStream(frame);
+                    if (notification == large) {
+                        payload = new GZIPInputStream(payload);
+                    }
+                    assertEquals(
+                            new String(notification.getPayload(), StandardCharsets.UTF_8),
+                            new String(payload.readAllBytes(), StandardCharsets.UTF_8));
+                }
+                sent.get();
+            }
+        }
+    }
+
+    public void testTcpSelectorCompletesOnExecutorUntilStopped() throws Exception {
+        List<String> completedOn = new ArrayList<>();
+        TcpSelector selector = new TcpSelector(task -> {
+            completedOn.add(Thread.currentThread().getName());
+            task.run();
+        });
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            String url = "localhost:" + server.getLocalPort();
+            CompletableFuture<Void> sent = selector.send(url, "Hello".getBytes(), 30000);
+            try (Socket socket = server.accept()) {
+                assertEquals("Hello", new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+            }
+            sent.get();
+            assertEquals(List.of("TcpSelector"), completedOn);
+
+            selector.stop();
+            try {
+                selector.send(url, "Bye".getBytes(), 30000).get();
+                fail("Sent after stop");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    public void testTcpFramedReusesConnection() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            BlockingQueue<String> frames = new LinkedBlockingQueue<>();
+            Thread receiver = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    DataInputStream input = new DataInputStream(socket.getInputStream());
+                    for (int i = 0; i < 3; i++) {
+                        byte[] frame = new byte[input.readInt()];
+                        input.readFully(frame);
+                        frames.add(new String(frame, StandardCharsets.UTF_8));
+                        socket.getOutputStream().write(i < 2 ? "OK\n".getBytes() : "Full\n".getBytes());
+                    }
+                } catch (IOException e) {
+                    frames.add(e.toString());
+                }
+            });
+            receiver.start();
+
+            String url = "localhost:" + server.getLocalPort();
+            TcpTransport.send(url, "One".getBytes(), 30000, Framing.LENGTH_PREFIXED, Compression.NONE, true);
+            TcpTransport.send(url, "Two".getBytes(), 30000, Framing.LENGTH_PREFIXED, Compression.NONE, true);
+            try {
+                TcpTransport.send(url, "Three".getBytes(), 30000, Framing.LENGTH_PREFIXED, Compression.NONE, true);
+                fail("Rejection not reported");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().endsWith(": Full"));
+            }
+            receiver.join();
+
+            assertEquals("One", frames.take());
+            assertEquals("Two", frames.take());
+            assertEquals("Three", frames.take());
+            assertTrue(frames.isEmpty());
+        }
+    }
+
+    public void testTcpFramedReconnectsBeforeWriting() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            BlockingQueue<String> frames = new LinkedBlockingQueue<>();
+            Thread receiver = new Thread(() -> {
+                try {
+                    // Closes the first connection once idle, the second notification comes on a new one.
+                    for (int i = 0; i < 2; i++) {
+                        try (Socket socket = server.accept()) {
+                            DataInputStream input = new DataInputStream(socket.getInputStream());
+                            byte[] frame = new byte[input.readInt()];
+                            input.readFully(frame);
+                            frames.add(new String(frame, StandardCharsets.UTF_8));
+                            socket.getOutputStream().write("OK\n".getBytes());
+                        }
+                    }
+                } catch (IOException e) {
+                    frames.add(e.toString());
+                }
+            });
+            receiver.start();
+
+            String url = "localhost:" + server.getLocalPort();
+            TcpTransport.send(url, "One".getBytes(), 30000, Framing.LENGTH_PREFIXED, Compression.NONE, true);
+            assertEquals("One", frames.take());
+            Thread.sleep(200);
+            TcpTransport.send(url, "Two".getBytes(), 30000, Framing.LENGTH_PREFIXED, Compression.NONE, true);
+            receiver.join();
+
+            assertEquals("Two", frames.take());
+            assertTrue(frames.isEmpty());
+        }
+    }
+
+    public void testTcpFramedNeverWritesAgainOnceWritten() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread receiver = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    DataInputStream input = new DataInputStream(socket.getInputStream());
+                    input.readFully(new byte[input.readInt()]);
+                    socket.getOutputStream().write("OK\n".getBytes());
+                    // Gets the second notification, but goes away before acknowledging it.
+                    input.readFully(new byte[input.readInt()]);
+                } catch (IOException e) {
+                    // The test fails on the sending side.
+                }
+            });
+            receiver.start();
+
+            String url = "localhost:" + server.getLocalPort();
+            TcpTransport.send(url, "One".getBytes(), 30000, Framing.LENGTH_PREFIXED, Compression.NONE, true);
+            try {
+                TcpTransport.send(url, "Two".getBytes(), 30000, Framing.LENGTH_PREFIXED, Compression.NONE, true);
+                fail("Missing acknowledgement not reported");
+            } catch (IOException e) {
+                // expected
+            }
+            receiver.join();
+
+            server.setSoTimeout(500);
+            try (Socket socket = server.accept()) {
+                fail("Notification written again");
+            } catch (SocketTimeoutException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testTcpNewlineDelimitedRejectsXml() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Endpoint endpoint = new Endpoint(new UrlInfo(UrlType.PUBLIC, "localhost:" + server.getLocalPort()));
+            endpoint.setProtocol(Protocol.TCP);
+            endpoint.setFormat(Format.XML);
+            endpoint.setFraming(Framing.NEWLINE_DELIMITED);
+            try {
+                Protocol.TCP.sendAsync(notification(endpoint, "<build>\n</build>")).get();
+                fail("XML sent newline delimited");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+
+            server.setSoTimeout(500);
+            try (Socket socket = server.accept()) {
+                fail("Receiver contacted");
+            } catch (SocketTimeoutException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testUdpRejectsOversizedPayload() throws Exception {
+        try (DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            String url = "localhost:" + receiver.getLocalPort();
+            Protocol.UDP.send(url, "Hello".getBytes(), 30000, true);
+
+            DatagramPacket packet = new DatagramPacket(new byte[100], 100);
+            receiver.setSoTimeout(30000);
+            receiver.receive(packet);
+            assertEquals("Hello", new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+
+            long oversized = UdpTransport.getOversized();
+            try {
+                Protocol.UDP.send(url, new byte[UdpTransport.MAX_DATAGRAM_SIZE + 1], 30000, true);
+                fail("Oversized payload sent");
+            } catch (IllegalArgumentException e) {
+                assertEquals(oversized + 1, UdpTransport.getOversized());
+            }
+        }
+    }
+
+    private static Notification notification(Protocol protocol, String url, String payload, Compression compression) {
+        Endpoint endpoint = new Endpoint(new UrlInfo(UrlType.PUBLIC, url));
+        endpoint.setProtocol(protocol);
+        endpoint.setCompression(compression);
+        endpoint.setCompressionThreshold(0);
+        return notification(endpoint, payload);
+    }
+
+    private static Notification notification(Endpoint endpoint, String payload) {
+        String url = endpoint.getUrlInfo().getUrlOrId();
+        return new Notification(
+                "job#1",
+                Phase.COMPLETED,
+                endpoint,
+                url,
+                "url '" + url + "'",
+                payload.getBytes(StandardCharsets.UTF_8),
+                null,
+                System.currentTimeMillis());
+    }
 }
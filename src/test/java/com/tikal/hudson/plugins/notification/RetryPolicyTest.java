@@ -0,0 +1,43 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testDelayGrowsExponentiallyWithJitter() {
+        RetryPolicy policy = new RetryPolicy(1000, 60000, Long.MAX_VALUE);
+
+        for (int attempt = 1; attempt <= 6; attempt++) {
+            long ceiling = 1000L << (attempt - 1);
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.nextDelay(attempt, 0, random);
+                assertTrue("delay " + delay + " of attempt " + attempt, delay >= ceiling / 2 && delay <= ceiling);
+            }
+        }
+    }
+
+    @Test
+    public void testDelayIsCappedByMaxDelay() {
+        RetryPolicy policy = new RetryPolicy(1000, 5000, Long.MAX_VALUE);
+
+        for (int attempt = 4; attempt <= 100; attempt++) {
+            long delay = policy.nextDelay(attempt, 0, random);
+            assertTrue("delay " + delay + " of attempt " + attempt, delay >= 2500 && delay <= 5000);
+        }
+    }
+
+    @Test
+    public void testGivesUpPastMaxAge() {
+        RetryPolicy policy = new RetryPolicy(1000, 1000, 10000);
+
+        assertTrue(policy.nextDelay(1, 0, random) >= 0);
+        assertEquals(-1, policy.nextDelay(1, 9999, random));
+    }
+}
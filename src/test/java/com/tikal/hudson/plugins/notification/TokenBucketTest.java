@@ -0,0 +1,52 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+    private final AtomicLong now = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+
+    @Test
+    public void testBurstThenSustainedRate() {
+        // One token per second, three at once.
+        TokenBucket bucket = new TokenBucket(60, 3, now::get);
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(0, bucket.reserve(0));
+        assertEquals("bursts are queued, not dropped", 1000, bucket.reserve(0));
+        assertEquals(2000, bucket.reserve(0));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertEquals(1000, bucket.reserve(0));
+    }
+
+    @Test
+    public void testRefillsWhenIdle() {
+        TokenBucket bucket = new TokenBucket(60, 2, now::get);
+        bucket.reserve(0);
+        bucket.reserve(0);
+        bucket.reserve(0);
+
+        now.addAndGet(TimeUnit.MINUTES.toNanos(1));
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(1000, bucket.reserve(0));
+    }
+
+    @Test
+    public void testKeepsRequestedDelay() {
+        TokenBucket bucket = new TokenBucket(60, 1, now::get);
+        assertEquals(5000, bucket.reserve(5000));
+        assertEquals(6000, bucket.reserve(0));
+    }
+
+    @Test
+    public void testUnlimited() {
+        assertNull(TokenBucket.of(0, 1));
+    }
+}
@@ -0,0 +1,250 @@
+package com.tikal.hudson.plugins.notification;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecoversUnacknowledgedRecords() throws IOException {
+        File directory = folder.newFolder();
+
+        WriteAheadLog log = new WriteAheadLog(directory, 1024 * 1024);
+        long first = log.append(bytes("first")).join();
+        long second = log.append(bytes("second")).join();
+        long third = log.append(bytes("third")).join();
+        log.ack(second);
+        log.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(directory, 1024 * 1024);
+        Map<Long, byte[]> recovered = reopened.recover();
+        assertEquals(Set.of(first, third), recovered.keySet());
+        assertArrayEquals(bytes("first"), recovered.get(first));
+        assertArrayEquals(bytes("third"), recovered.get(third));
+        assertTrue("records are only recovered once", reopened.recover().isEmpty());
+
+        long fourth = reopened.append(bytes("fourth")).join();
+        assertTrue("ids keep growing across restarts", fourth > third);
+        reopened.close();
+    }
+
+    @Test
+    public void testReclaimsAcknowledgedSegments() throws IOException {
+        File directory = folder.newFolder();
+
+        WriteAheadLog log = new WriteAheadLog(directory, 256);
+        List<CompletableFuture<Long>> appends = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            appends.add(log.append(bytes("record " + i)));
+        }
+        long stuck = appends.get(0).join();
+        for (CompletableFuture<Long> append : appends) {
+            long id = append.join();
+            if (id != stuck) {
+                log.ack(id);
+            }
+        }
+        // One more batch makes sure all acknowledgements went through.
+        log.append(bytes("last")).join();
+        log.close();
+
+        assertTrue("segments are reclaimed", log.getSegmentCount() < 5);
+
+        WriteAheadLog reopened = new WriteAheadLog(directory, 256);
+        Map<Long, byte[]> recovered = reopened.recover();
+        assertEquals(2, recovered.size());
+        assertArrayEquals(bytes("record 0"), recovered.get(stuck));
+        reopened.close();
+    }
+
+    @Test
+    public void testIgnoresTornWrite() throws IOException {
+        File directory = folder.newFolder();
+
+        WriteAheadLog log = new WriteAheadLog(directory, 1024 * 1024);
+        long id = log.append(bytes("complete")).join();
+        log.close();
+
+        File[] segments = directory.listFiles();
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.seek(file.length());
+            // Header of a record whose content never made it to disk.
+            file.writeInt(100);
+            file.writeInt(42);
+        }
+
+        WriteAheadLog reopened = new WriteAheadLog(directory, 1024 * 1024);
+        Map<Long, byte[]> recovered = reopened.recover();
+        assertEquals(Set.of(id), recovered.keySet());
+        reopened.close();
+    }
+
+    @Test
+    public void testRecoversRecordsAppendedAfterFailedWrite() throws IOException {
+        File directory = folder.newFolder();
+        AtomicBoolean failing = new AtomicBoolean();
+
+        WriteAheadLog log = new WriteAheadLog(directory, 1024 * 1024, path -> new FailingChannel(
+                FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND),
+                failing));
+        long before = log.append(bytes("before")).join();
+        failing.set(true);
+        try {
+            log.append(bytes("failed")).join();
+            fail("Failed write reported as done");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        failing.set(false);
+        long after = log.append(bytes("after")).join();
+        log.ack(before);
+        log.ack(after);
+        long last = log.append(bytes("last")).join();
+        log.close();
+
+        assertEquals("the failed record doesn't pin the torn segment", 1, log.getSegmentCount());
+
+        WriteAheadLog reopened = new WriteAheadLog(directory, 1024 * 1024);
+        Map<Long, byte[]> recovered = reopened.recover();
+        assertEquals(Set.of(last), recovered.keySet());
+        assertArrayEquals(bytes("last"), recovered.get(last));
+        reopened.close();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Channel whose writes stop halfway through while failing is set, leaving a torn record behind.
+     */
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        private final AtomicBoolean failing;
+
+        FailingChannel(FileChannel channel, AtomicBoolean failing) {
+            this.channel = channel;
+            this.failing = failing;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (failing.get()) {
+                ByteBuffer header = srcs[offset];
+                channel.write(header.slice().limit(header.remaining() / 2));
+                throw new IOException("Disk full");
+            }
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[] {src}, 0, 1);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}